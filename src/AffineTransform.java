@@ -17,6 +17,8 @@
 public class AffineTransform extends Transform {
     Matrix matrix;
     Matrix shift;
+    final double a, b, c, d; // matrix entries, unpacked for the primitive path
+    final double e, f;       // shift entries, unpacked for the primitive path
 
     /**
      * Normal constructor
@@ -27,6 +29,12 @@ public class AffineTransform extends Transform {
         super("Affine Transform");
         this.matrix = matrix;
         this.shift = shift;
+        this.a = matrix.get(1,1);
+        this.b = matrix.get(1,2);
+        this.c = matrix.get(2,1);
+        this.d = matrix.get(2,2);
+        this.e = shift.get(1,1);
+        this.f = shift.get(2,1);
     }
 
     /**
@@ -42,14 +50,56 @@ public class AffineTransform extends Transform {
         super("Affine Transform");
         this.matrix = new Matrix(new double[][]{{a, b}, {c, d}});
         this.shift = new Matrix(new double[][]{{e},{f}});
+        this.a = a;
+        this.b = b;
+        this.c = c;
+        this.d = d;
+        this.e = e;
+        this.f = f;
     }
 
-    /** Given a point, executes the affine transformation 
-     * @param p a point in the plane
-     * @return the point after affine transformation is applied
+    /**
+     * Executes the affine transformation on (x, y) without allocating
+     * @param x x coordinate of the point
+     * @param y y coordinate of the point
+     * @param out buffer of length at least 2 receiving the new {x, y}
+     */
+    public void apply(double x, double y, double[] out) {
+        out[0] = a * x + b * y + e;
+        out[1] = c * x + d * y + f;
+    }
+
+    /**
+     * Executes the affine transformation in place on parallel arrays
+     * @param xs x coordinates
+     * @param ys y coordinates
+     * @param i index of the point to move
      */
-    public Matrix transform(Matrix p) {
-        return this.matrix.multiply(p).add(this.shift);
+    public void apply(double[] xs, double[] ys, int i) {
+        double x = xs[i];
+        double y = ys[i];
+        xs[i] = a * x + b * y + e;
+        ys[i] = c * x + d * y + f;
+    }
+
+    /**
+     * Executes the affine transformation in place on a batch of points in
+     * parallel arrays. One tight loop with the coefficients in registers.
+     * @param xs x coordinates
+     * @param ys y coordinates
+     * @param index positions in <code> xs </code> and <code> ys </code> to move
+     * @param from first entry of <code> index </code> to use
+     * @param to one past the last entry of <code> index </code> to use
+     */
+    public void apply(double[] xs, double[] ys, int[] index, int from, int to) {
+        double a = this.a, b = this.b, c = this.c, d = this.d, e = this.e, f = this.f;
+        for (int k = from; k < to; k++) {
+            int i = index[k];
+            double x = xs[i];
+            double y = ys[i];
+            xs[i] = a * x + b * y + e;
+            ys[i] = c * x + d * y + f;
+        }
     }
 
     /**
@@ -57,12 +107,7 @@ public class AffineTransform extends Transform {
      */
     public String toString(){
         return String.format("[[%f,%f],[%f,%f]] [%f, %f]",
-                             this.matrix.get(1,1),
-                             this.matrix.get(1,2),
-                             this.matrix.get(2,1),
-                             this.matrix.get(2,2),
-                             this.shift.get(1,1),
-                             this.shift.get(2,1));
+                             a, b, c, d, e, f);
     }
     
     /**
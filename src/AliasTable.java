@@ -0,0 +1,101 @@
+/**
+ * Walker's alias method for drawing an index from a discrete distribution
+ * in constant time. The table is built once in linear time (Vose's
+ * variant); afterwards each draw needs a single uniform random number,
+ * one multiply and one comparison, however many outcomes there are.
+ * @author J. Marcus Hughes
+ */
+class AliasTable {
+    final int size;             // number of outcomes
+    final double[] probability; // chance of keeping the column drawn
+    final int[] alias;          // outcome used when the column is not kept
+
+    /**
+     * Build the table for the first <code> size </code> weights
+     * @param weights relative likelihood of each outcome, need not sum to 1.0
+     * @param size number of weights to use
+     */
+    AliasTable(double[] weights, int size) {
+        if (size <= 0) {
+            throw new RuntimeException("AliasTable needs at least one outcome");
+        }
+        this.size = size;
+        this.probability = new double[size];
+        this.alias = new int[size];
+
+        double total = 0.0;
+        for (int i = 0; i < size; i++) {
+            total += weights[i];
+        }
+
+        // scale so the average column holds exactly 1.0
+        double[] scaled = new double[size];
+        int[] small = new int[size];
+        int[] large = new int[size];
+        int ns = 0, nl = 0;
+        for (int i = 0; i < size; i++) {
+            scaled[i] = weights[i] * size / total;
+            if (scaled[i] < 1.0) {
+                small[ns++] = i;
+            } else {
+                large[nl++] = i;
+            }
+        }
+
+        // fill each under-full column with the remainder of an over-full one
+        while (ns > 0 && nl > 0) {
+            int s = small[--ns];
+            int l = large[--nl];
+            probability[s] = scaled[s];
+            alias[s] = l;
+            scaled[l] = (scaled[l] + scaled[s]) - 1.0;
+            if (scaled[l] < 1.0) {
+                small[ns++] = l;
+            } else {
+                large[nl++] = l;
+            }
+        }
+        // whatever is left is full up to rounding error
+        while (nl > 0) {
+            int l = large[--nl];
+            probability[l] = 1.0;
+            alias[l] = l;
+        }
+        while (ns > 0) {
+            int s = small[--ns];
+            probability[s] = 1.0;
+            alias[s] = s;
+        }
+    }
+
+    /**
+     * Draw an outcome
+     * @param u uniformly distributed number in [0, 1)
+     * @return index of the outcome
+     */
+    int choose(double u) {
+        double scaled = u * size;
+        int column = Math.min((int) scaled, size - 1);
+        return (scaled - column < probability[column]) ? column : alias[column];
+    }
+
+    /**
+     * testing main, draws evenly spaced numbers and checks every outcome is
+     * chosen in proportion to its weight, and one of weight zero never is
+     */
+    public static void main(String[] args) {
+        double[] weights = new double[]{1.0, 2.0, 3.0, 4.0, 0.0};
+        AliasTable table = new AliasTable(weights, weights.length);
+        int draws = 1000000;
+        long[] hits = new long[weights.length];
+        for (int k = 0; k < draws; k++) {
+            hits[table.choose((k + 0.5) / draws)]++;
+        }
+        for (int i = 0; i < weights.length; i++) {
+            double share = (double) hits[i] / draws;
+            System.out.printf("outcome %d weight %.1f drawn %.4f%n", i, weights[i], share);
+            assert Math.abs(share - weights[i] / 10.0) < 1e-4 : "outcome " + i + " drawn " + share;
+        }
+        assert hits[4] == 0 : "outcome of weight zero drawn";
+    }
+}
@@ -0,0 +1,291 @@
+import java.io.*;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import javax.imageio.ImageIO;
+
+/**
+ * Renders an animation of an <code> IFS </code> straight into a video
+ * file, without writing and reading back an image per frame. Two kinds of
+ * animation are made:
+ * <ul>
+ * <li> by iteration, frame k shows where the walkers are after k steps, as
+ *      <code> RandomIFSEvaluator.plotFrames </code> does, with all walkers
+ *      advanced together one step per frame
+ * <li> by interpolation, the coefficients and weights of two systems of
+ *      affine transforms are blended and every frame is a full render of
+ *      the blend, all frames sharing a seed so the noise does not flicker
+ * </ul>
+ * Frames are rendered and JPEG encoded on a pool of threads, which also
+ * runs the parallel evaluator of each blended frame. At most
+ * a few frames per thread are in flight at once, and finished frames are
+ * appended to a <code> MjpegAviWriter </code> in order, so memory stays
+ * bounded however long the animation is: a few images, plus for an
+ * animation by iteration a copy of the walker positions per frame in
+ * flight.
+ * @author J. Marcus Hughes
+ * @see MjpegAviWriter
+ */
+public class Animation {
+    static final int BOUND_SAMPLES = 9; // blends bounded to choose the region of an interpolation
+    int width;    // pixels wide of every frame
+    int height;   // pixels high of every frame
+    double fps;   // frames per second
+    int inFlight; // most frames rendered or encoded at once
+    ForkJoinPool pool; // renders and encodes frames
+
+    /**
+     * Set up an animation with one thread per core
+     * @param width pixels wide of every frame
+     * @param height pixels high of every frame
+     * @param fps frames per second
+     */
+    Animation(int width, int height, double fps) {
+        this.width = width;
+        this.height = height;
+        this.fps = fps;
+        setThreads(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Choose how many frames are worked on at once
+     * @param threads threads rendering and encoding frames
+     */
+    public void setThreads(int threads) {
+        assert threads > 0 : "threads must be positive";
+        if (pool != null) {
+            pool.shutdown();
+        }
+        this.pool = new ForkJoinPool(threads);
+        this.inFlight = 2 * threads;
+    }
+
+    /**
+     * Animate the walkers of a system, one frame per iteration from the
+     * starting points to the last step, over the attractor. The walkers are
+     * advanced together and each step is copied for the frame that shows
+     * it, so memory grows with the number of walkers but not with the
+     * number of iterations.
+     * @param ifs the system
+     * @param numPoints how many walkers
+     * @param iterations how many steps, the video has iterations + 1 frames
+     * @param file where to write the video
+     */
+    public void byIteration(IFS ifs, int numPoints, int iterations, Path file) {
+        Bounds b = Bounds.of(ifs).withAspect(width, height);
+        try (Frames frames = new Frames(file)) {
+            new RandomIFSEvaluator(ifs, numPoints, iterations).stream(new PointSink() {
+                    public void accept(int iteration, int transform, double x, double y) {
+                        throw new RuntimeException("Frames are made from whole steps of all walkers");
+                    }
+
+                    public void acceptBatch(int iteration, int[] transforms,
+                                            double[] xs, double[] ys, int count) {
+                        int[] ts = Arrays.copyOf(transforms, count);
+                        double[] px = Arrays.copyOf(xs, count);
+                        double[] py = Arrays.copyOf(ys, count);
+                        frames.add(() -> {
+                                Image img = new Image(width, height, b.xmin, b.xmax, b.ymin, b.ymax);
+                                img.setColors(ifs);
+                                img.acceptBatch(iteration, ts, px, py, count);
+                                return img;
+                            });
+                    }
+                }, numPoints);
+        }
+    }
+
+    /**
+     * Animate a blend from one system of affine transforms to another.
+     * Both ends are shown. The region covers the attractors of the blends
+     * at several points along the way, not just of the two ends, since
+     * a blend can reach outside both.
+     * @param from the system at the first frame
+     * @param to the system at the last frame, with as many transforms
+     * @param frames number of frames, at least 2
+     * @param numPoints starting points per frame
+     * @param iterations iterations per starting point
+     * @param file where to write the video
+     */
+    public void interpolate(IFS from, IFS to, int frames, int numPoints, int iterations, Path file) {
+        assert frames > 1 : "need at least two frames";
+        int samples = Math.min(frames, BOUND_SAMPLES);
+        Bounds region = Bounds.of(from);
+        for (int j = 1; j < samples; j++) {
+            region = region.union(Bounds.of(interpolate(from, to, j / (samples - 1.0))));
+        }
+        Bounds b = region.withAspect(width, height);
+        try (Frames video = new Frames(file)) {
+            for (int k = 0; k < frames; k++) {
+                double t = k / (frames - 1.0);
+                video.add(() -> {
+                        IFS blend = interpolate(from, to, t);
+                        Image img = new Image(width, height, b.xmin, b.xmax, b.ymin, b.ymax);
+                        img.setColors(blend);
+                        ParallelIFSEvaluator evaluator = new ParallelIFSEvaluator(blend, numPoints,
+                                                                                  iterations, 1L);
+                        evaluator.setPool(pool);
+                        evaluator.run(img.density);
+                        return img;
+                    });
+            }
+        }
+    }
+
+    /**
+     * Blend two systems of affine transforms
+     * @param from the system at t = 0
+     * @param to the system at t = 1, with as many transforms
+     * @param t how far from <code> from </code> to <code> to </code>
+     * @return a system whose coefficients and weights are blended linearly,
+     *         with the colors of <code> from </code>
+     */
+    public static IFS interpolate(IFS from, IFS to, double t) {
+        int n = from.size();
+        if (to.size() != n) {
+            throw new RuntimeException("Systems must have the same number of transforms to blend");
+        }
+        Vector<Transform> transforms = new Vector<Transform>();
+        Vector<Double> probabilities = new Vector<Double>();
+        for (int i = 0; i < n; i++) {
+            if (!(from.transform(i) instanceof AffineTransform)
+                || !(to.transform(i) instanceof AffineTransform)) {
+                throw new RuntimeException("Only affine transforms can be blended");
+            }
+            AffineTransform p = (AffineTransform) from.transform(i);
+            AffineTransform q = (AffineTransform) to.transform(i);
+            AffineTransform r = new AffineTransform(p.a + t * (q.a - p.a), p.b + t * (q.b - p.b),
+                                                    p.c + t * (q.c - p.c), p.d + t * (q.d - p.d),
+                                                    p.e + t * (q.e - p.e), p.f + t * (q.f - p.f));
+            r.color = p.color;
+            transforms.add(r);
+            double w = from.probability(i);
+            probabilities.add(w + t * (to.probability(i) - w));
+        }
+        // the last weight takes what is left, so rounding keeps the sum at 1
+        double others = 0.0;
+        for (int i = 0; i < n - 1; i++) {
+            others += probabilities.get(i);
+        }
+        probabilities.set(n - 1, 1.0 - others);
+        return new IFS(transforms, probabilities);
+    }
+
+    /**
+     * Frames rendered and encoded on the pool and written in order, with at
+     * most <code> inFlight </code> of them pending at once
+     */
+    private class Frames implements Closeable {
+        final Path file;
+        final MjpegAviWriter video;
+        final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+        boolean failed; // a frame could not be made, stop writing
+
+        Frames(Path file) {
+            this.file = file;
+            this.video = new MjpegAviWriter(file, width, height, fps);
+        }
+
+        /**
+         * Queue the next frame, first writing the oldest if the window is full
+         * @param render makes the image of the frame, run on the pool
+         */
+        void add(Callable<Image> render) {
+            if (pending.size() >= inFlight) {
+                writeOldest();
+            }
+            pending.add(pool.submit(() -> jpeg(render.call())));
+        }
+
+        /**
+         * Wait for the oldest pending frame and append it to the video
+         */
+        private void writeOldest() {
+            try {
+                video.addFrame(pending.remove().get());
+            } catch (ExecutionException e) {
+                failed = true;
+                throw new RuntimeException("Could not render a frame", e.getCause());
+            } catch (InterruptedException e) {
+                failed = true;
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while rendering " + file, e);
+            } catch (RuntimeException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        /**
+         * Write the remaining frames, or drop them after a failure, and
+         * finish the video
+         */
+        public void close() {
+            try {
+                while (!failed && !pending.isEmpty()) {
+                    writeOldest();
+                }
+            } finally {
+                for (Future<byte[]> f : pending) {
+                    f.cancel(true);
+                }
+                try {
+                    video.close();
+                } catch (IOException e) {
+                    throw new RuntimeException("Could not write " + file, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tone map an image and encode it as a JPEG in memory
+     */
+    private static byte[] jpeg(Image img) throws IOException {
+        img.render();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!ImageIO.write(img.img, "jpg", out)) {
+            throw new IOException("No JPEG writer available");
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * testing main, the Barnsley fern by iteration, as in
+     * <code> RandomIFSEvaluator.main </code>, and blended into a Sierpinski
+     * like system
+     */
+    public static void main(String[] args) {
+        Vector<Transform> transforms = new Vector<Transform>();
+        Vector<Double> probabilities = new Vector<Double>();
+        transforms.add(new AffineTransform(0.0, 0.0, 0.0, 0.16, 0.0, 0.0));
+        probabilities.add(0.01);
+        transforms.add(new AffineTransform(0.85, 0.04, -0.04, 0.85, 0.0, 1.6));
+        probabilities.add(0.85);
+        transforms.add(new AffineTransform(0.20, -0.26, 0.23, 0.22, 0.0, 1.6));
+        probabilities.add(0.07);
+        transforms.add(new AffineTransform(-0.15, 0.28, 0.26, 0.24, 0.0, 0.44));
+        probabilities.add(0.07);
+        IFS fern = new IFS(transforms, probabilities);
+
+        Vector<Transform> corners = new Vector<Transform>();
+        corners.add(new AffineTransform(0.5, 0.0, 0.0, 0.5, 0.0, 0.0));
+        corners.add(new AffineTransform(0.5, 0.0, 0.0, 0.5, 5.0, 0.0));
+        corners.add(new AffineTransform(0.5, 0.0, 0.0, 0.5, 0.0, 5.0));
+        corners.add(new AffineTransform(0.5, 0.0, 0.0, 0.5, 5.0, 5.0));
+        IFS square = new IFS(corners);
+
+        Animation animation = new Animation(500, 500, 10);
+        long start = System.nanoTime();
+        animation.byIteration(fern, 10000, 100, new File("fern.avi").toPath());
+        System.out.printf("by iteration in %.2f s%n", (System.nanoTime() - start) / 1e9);
+        start = System.nanoTime();
+        animation.interpolate(fern, square, 50, 10000, 100, new File("blend.avi").toPath());
+        System.out.printf("interpolated in %.2f s%n", (System.nanoTime() - start) / 1e9);
+    }
+}
@@ -0,0 +1,315 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Renders many small images of many <code> IFS </code>s, e.g. thumbnails
+ * of candidate systems. Each job is sampled, with a
+ * <code> ParallelIFSEvaluator </code>, and tone mapped on a bounded pool of
+ * platform threads, one per core by default. The finished image is then
+ * handed to a separate executor for encoding and writing, so the cores
+ * never wait on the disk. On Java 21 and later writes run on virtual
+ * threads. Before that, including Java 17, they run on a fixed pool of
+ * platform threads, as many as render, with a short queue; once the
+ * queue is full a rendering thread writes its own image. That holds the
+ * number of finished images waiting for the disk to a few per thread,
+ * however many jobs are queued.
+ * <p>
+ * The region of each image is the one given with the job or, if none is,
+ * found by <code> Bounds.of </code> with a pilot run of at most a tenth of
+ * the points the job samples, so the pilot never dominates small jobs.
+ * <p>
+ * Every job records when it was submitted, started, rendered and written,
+ * and <code> report </code> summarizes latency and throughput.
+ * @author J. Marcus Hughes
+ */
+public class BatchRenderer {
+    static final int PILOT = 100000;   // most points in the pilot run of a job
+    static final int MIN_PILOT = 1000; // fewest points in the pilot run of a job
+    int width;       // pixels wide of each image
+    int height;      // pixels high of each image
+    int numPoints;   // starting points per job
+    int iterations;  // iterations per starting point
+    ForkJoinPool cpu;   // sampling and tone mapping
+    ExecutorService io; // encoding and writing
+    ConcurrentLinkedQueue<Job> finished; // jobs done, written or failed
+    private AtomicLong submitted; // jobs submitted so far
+    private volatile long start;  // time of the first submission, 0 before
+
+    /**
+     * A single image to render and its timings, in nanoseconds
+     */
+    static class Job {
+        final IFS ifs;
+        final String filename;
+        final long seed;
+        final Bounds bounds; // region to render, null to estimate it
+        final long queued;  // when it was submitted
+        long started;       // when sampling began
+        long rendered;      // when the image was tone mapped
+        long written;       // when the file was closed
+        Throwable error;    // why it failed, null if it did not
+
+        Job(IFS ifs, String filename, long seed, Bounds bounds) {
+            this.ifs = ifs;
+            this.filename = filename;
+            this.seed = seed;
+            this.bounds = bounds;
+            this.queued = System.nanoTime();
+        }
+
+        /**
+         * @return seconds from submission until the file was written or
+         *         the job failed
+         */
+        double latency() {
+            return (written - queued) / 1e9;
+        }
+    }
+
+    /**
+     * Set up a renderer with one rendering thread per core
+     * @param width pixels wide of each image
+     * @param height pixels high of each image
+     * @param numPoints starting points per job
+     * @param iterations iterations per starting point
+     */
+    BatchRenderer(int width, int height, int numPoints, int iterations) {
+        this(width, height, numPoints, iterations, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Set up a renderer
+     * @param width pixels wide of each image
+     * @param height pixels high of each image
+     * @param numPoints starting points per job
+     * @param iterations iterations per starting point
+     * @param threads platform threads sampling and tone mapping
+     */
+    BatchRenderer(int width, int height, int numPoints, int iterations, int threads) {
+        assert threads > 0 : "threads must be positive";
+        this.width = width;
+        this.height = height;
+        this.numPoints = numPoints;
+        this.iterations = iterations;
+        this.cpu = new ForkJoinPool(threads);
+        this.io = ioExecutor(threads);
+        this.finished = new ConcurrentLinkedQueue<Job>();
+        this.submitted = new AtomicLong();
+    }
+
+    /**
+     * A virtual thread per task on Java 21 and later, found by reflection
+     * so older runtimes still work, else a bounded pool of platform threads
+     * that makes the submitting thread write once its queue is full
+     * @param threads platform threads writing, and twice that many queued
+     */
+    private static ExecutorService ioExecutor(int threads) {
+        try {
+            return (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(2 * threads),
+                (r) -> {
+                    Thread t = new Thread(r, "BatchRenderer-io");
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+            pool.allowCoreThreadTimeOut(true);
+            return pool;
+        }
+    }
+
+    /**
+     * Queue a system to be rendered over its attractor and written
+     * @param ifs the system
+     * @param filename where to save the image
+     * @return the job, completed once the file is written or failed
+     */
+    public CompletableFuture<Job> submit(IFS ifs, String filename) {
+        return submit(ifs, filename, null);
+    }
+
+    /**
+     * Queue a system to be rendered over a known region and written
+     * @param ifs the system
+     * @param filename where to save the image
+     * @param bounds region to render, stretched to the image aspect, or
+     *        <code> null </code> to estimate it from a pilot run
+     * @return the job, completed once the file is written or failed
+     */
+    public CompletableFuture<Job> submit(IFS ifs, String filename, Bounds bounds) {
+        long n = submitted.getAndIncrement();
+        synchronized (this) {
+            if (start == 0) {
+                start = System.nanoTime();
+            }
+        }
+        Job job = new Job(ifs, filename, n, bounds);
+        return CompletableFuture
+            .supplyAsync(() -> render(job), cpu)
+            .thenApplyAsync((img) -> write(job, img), io)
+            .whenComplete((j, error) -> {
+                    if (error != null) {
+                        job.error = error instanceof CompletionException ? error.getCause() : error;
+                        job.written = System.nanoTime();
+                    }
+                    finished.add(job);
+                });
+    }
+
+    /**
+     * Render every system and wait for all of them to be written
+     * @param systems the systems to render
+     * @param pattern format string for the filenames, given the position
+     *        of the system, e.g. "thumbs/%05d.jpg"
+     * @return the jobs that were written, in the order of <code> systems </code>;
+     *         failures are counted in <code> report </code>
+     */
+    public List<Job> renderAll(List<IFS> systems, String pattern) {
+        List<CompletableFuture<Job>> futures = new ArrayList<CompletableFuture<Job>>();
+        for (int k = 0; k < systems.size(); k++) {
+            futures.add(submit(systems.get(k), String.format(pattern, k)));
+        }
+        List<Job> jobs = new ArrayList<Job>();
+        for (CompletableFuture<Job> f : futures) {
+            try {
+                jobs.add(f.join());
+            } catch (CompletionException e) {
+                // recorded on the job, see report
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Sample and tone map a job, run on the rendering pool
+     */
+    private Image render(Job job) {
+        job.started = System.nanoTime();
+        Bounds b = job.bounds;
+        if (b == null) {
+            long budget = (long) numPoints * iterations / 10;
+            b = Bounds.of(job.ifs, (int) Math.max(MIN_PILOT, Math.min(PILOT, budget)));
+        }
+        b = b.withAspect(width, height);
+        Image img = new Image(width, height, b.xmin, b.xmax, b.ymin, b.ymax);
+        img.setColors(job.ifs);
+        ParallelIFSEvaluator evaluator = new ParallelIFSEvaluator(job.ifs, numPoints,
+                                                                  iterations, job.seed);
+        evaluator.setPool(cpu);
+        evaluator.run(img.density);
+        img.render();
+        job.rendered = System.nanoTime();
+        return img;
+    }
+
+    /**
+     * Encode and write a job, run on the writing executor
+     */
+    private Job write(Job job, Image img) {
+        try {
+            img.write(job.filename);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+        job.written = System.nanoTime();
+        return job;
+    }
+
+    /**
+     * Latency percentiles, failures and throughput of the jobs finished so far
+     */
+    public String report() {
+        Job[] jobs = finished.toArray(new Job[0]);
+        if (jobs.length == 0) {
+            return "no jobs finished";
+        }
+        double[] latency = new double[jobs.length];
+        double render = 0.0, write = 0.0;
+        long last = 0;
+        int failed = 0, written = 0;
+        for (int k = 0; k < jobs.length; k++) {
+            latency[k] = jobs[k].latency();
+            last = Math.max(last, jobs[k].written);
+            if (jobs[k].error != null) {
+                failed++;
+            } else {
+                render += (jobs[k].rendered - jobs[k].started) / 1e9;
+                write += (jobs[k].written - jobs[k].rendered) / 1e9;
+                written++;
+            }
+        }
+        Arrays.sort(latency);
+        double elapsed = (last - start) / 1e9;
+        return String.format("%d jobs (%d failed) in %.2f s, %.1f jobs/s; "
+                             + "latency p50 %.3f s, p95 %.3f s, max %.3f s; "
+                             + "mean render %.3f s, mean write %.3f s",
+                             jobs.length, failed, elapsed, jobs.length / elapsed,
+                             latency[latency.length / 2],
+                             latency[(int)(0.95 * (latency.length - 1))],
+                             latency[latency.length - 1],
+                             render / Math.max(1, written), write / Math.max(1, written));
+    }
+
+    /**
+     * Stop accepting jobs and wait for the queued ones to be written
+     */
+    public void shutdown() {
+        cpu.shutdown();
+        try {
+            cpu.awaitTermination(1, TimeUnit.DAYS);
+            io.shutdown();
+            io.awaitTermination(1, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * testing main, thumbnails of random perturbations of the Barnsley fern
+     */
+    public static void main(String[] args) {
+        double[][] fern = {{0.0, 0.0, 0.0, 0.16, 0.0, 0.0},
+                           {0.85, 0.04, -0.04, 0.85, 0.0, 1.6},
+                           {0.20, -0.26, 0.23, 0.22, 0.0, 1.6},
+                           {-0.15, 0.28, 0.26, 0.24, 0.0, 0.44}};
+        double[] weights = {0.01, 0.85, 0.07, 0.07};
+        SplittableRandom rng = new SplittableRandom(7L);
+        List<IFS> systems = new ArrayList<IFS>();
+        for (int k = 0; k < 200; k++) {
+            Vector<Transform> transforms = new Vector<Transform>();
+            Vector<Double> probabilities = new Vector<Double>();
+            for (int i = 0; i < fern.length; i++) {
+                double[] c = fern[i].clone();
+                for (int j = 0; j < 4; j++) {
+                    c[j] += 0.05 * (rng.nextDouble() - 0.5);
+                }
+                transforms.add(new AffineTransform(c[0], c[1], c[2], c[3], c[4], c[5]));
+                probabilities.add(weights[i]);
+            }
+            systems.add(new IFS(transforms, probabilities));
+        }
+        new File("thumbs").mkdirs();
+        BatchRenderer renderer = new BatchRenderer(128, 128, 2000, 50);
+        renderer.renderAll(systems, "thumbs/%05d.jpg");
+        renderer.shutdown();
+        System.out.println(renderer.report());
+    }
+}
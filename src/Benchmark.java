@@ -0,0 +1,306 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.Vector;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+
+/**
+ * A small benchmark harness for the hot paths of the IFS code.
+ * Each case is warmed up, then measured several times. For every case the
+ * mean throughput with its standard deviation is reported, together with
+ * the bytes allocated by the running thread per operation and per second,
+ * so that a change can be checked against a baseline run for both speed
+ * and garbage. Only allocation by the measuring thread is counted, so
+ * work done on a thread pool shows up in throughput but not in B/op.
+ * <pre>
+ * java -cp out Benchmark            # run everything
+ * java -cp out Benchmark 'Image.*'  # run cases whose name matches
+ * </pre>
+ * @author J. Marcus Hughes
+ */
+public class Benchmark {
+    static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    static final int WARMUP = 3;       // untimed runs of each case
+    static final int MEASUREMENTS = 5; // timed runs of each case
+
+    /**
+     * A unit of work to be measured
+     */
+    interface Case {
+        /**
+         * perform <code> ops </code> operations
+         * @param ops number of operations to run
+         * @return any value depending on the work so it is not optimized away
+         */
+        double run(long ops);
+    }
+
+    static double sink;     // consumes case results
+    static Pattern filter;  // which cases to run
+
+    /**
+     * Time a case and report throughput and allocation per operation
+     * @param name label for the output
+     * @param ops number of operations per measurement
+     * @param c the case to run
+     */
+    static void measure(String name, long ops, Case c) {
+        if (filter != null && !filter.matcher(name).matches()) {
+            return;
+        }
+        for (int i = 0; i < WARMUP; i++) {
+            sink += c.run(ops);
+        }
+        long tid = Thread.currentThread().getId();
+        double[] rates = new double[MEASUREMENTS];
+        long bytes = 0;
+        long nanos = 0;
+        for (int i = 0; i < MEASUREMENTS; i++) {
+            long before = THREADS.getThreadAllocatedBytes(tid);
+            long start = System.nanoTime();
+            sink += c.run(ops);
+            long elapsed = System.nanoTime() - start;
+            bytes += THREADS.getThreadAllocatedBytes(tid) - before;
+            nanos += elapsed;
+            rates[i] = ops / (elapsed / 1e9);
+        }
+        double mean = 0.0;
+        for (double r : rates) {
+            mean += r / MEASUREMENTS;
+        }
+        double variance = 0.0;
+        for (double r : rates) {
+            variance += (r - mean) * (r - mean) / (MEASUREMENTS - 1);
+        }
+        System.out.printf("%-44s %14.1f +- %-12.1f ops/s %12.3f B/op %10.1f MB/s%n",
+                          name, mean, Math.sqrt(variance),
+                          (double) bytes / (ops * MEASUREMENTS),
+                          bytes / (nanos / 1e9) / 1e6);
+    }
+
+    /**
+     * @return the Barnsley fern, as in <code> RandomIFSEvaluator.main </code>
+     */
+    static IFS fern() {
+        Vector<Transform> transforms = new Vector<Transform>();
+        Vector<Double> probabilities = new Vector<Double>();
+        transforms.add(new AffineTransform(0.0, 0.0, 0.0, 0.16, 0.0, 0.0));
+        probabilities.add(0.01);
+        transforms.add(new AffineTransform(0.85, 0.04, -0.04, 0.85, 0.0, 1.6));
+        probabilities.add(0.85);
+        transforms.add(new AffineTransform(0.20, -0.26, 0.23, 0.22, 0.0, 1.6));
+        probabilities.add(0.07);
+        transforms.add(new AffineTransform(-0.15, 0.28, 0.26, 0.24, 0.0, 0.44));
+        probabilities.add(0.07);
+        return new IFS(transforms, probabilities);
+    }
+
+    /**
+     * Compares the matrix based and primitive affine paths, and virtual
+     * against compiled evaluation of variations
+     */
+    static void transforms() {
+        AffineTransform t = new AffineTransform(0.85, 0.04, -0.04, 0.85, 0.0, 1.6);
+        measure("AffineTransform.transform(Matrix)", 10_000_000, (ops) -> {
+                Matrix p = new Matrix(0.1, 0.2);
+                for (long i = 0; i < ops; i++) {
+                    p = t.transform(p);
+                }
+                return p.get(1,1);
+            });
+        measure("AffineTransform.apply(x, y, out)", 10_000_000, (ops) -> {
+                double[] p = new double[]{0.1, 0.2};
+                for (long i = 0; i < ops; i++) {
+                    t.apply(p[0], p[1], p);
+                }
+                return p[0];
+            });
+        measure("AffineTransform.apply(xs, ys, i)", 10_000_000, (ops) -> {
+                double[] xs = new double[]{0.1};
+                double[] ys = new double[]{0.2};
+                for (long i = 0; i < ops; i++) {
+                    t.apply(xs, ys, 0);
+                }
+                return xs[0];
+            });
+        measure("AffineTransform.apply(batch of 4096)", 10_000, (ops) -> {
+                double[] xs = new double[4096];
+                double[] ys = new double[4096];
+                int[] index = new int[4096];
+                for (int i = 0; i < index.length; i++) {
+                    index[i] = i;
+                }
+                for (long i = 0; i < ops; i++) {
+                    t.apply(xs, ys, index, 0, index.length);
+                }
+                return xs[0];
+            });
+
+        Vector<Transform> flame = new Vector<Transform>();
+        flame.add(new VariationTransform(new AffineTransform(0.56, -0.43, 0.43, 0.56, 0.2, 0.1),
+                                         new Variation[]{Variation.SWIRL, Variation.LINEAR},
+                                         new double[]{0.7, 0.3}));
+        flame.add(new VariationTransform(new AffineTransform(0.5, 0.0, 0.0, 0.5, -0.5, 0.3),
+                                         Variation.SPHERICAL));
+        flame.add(new VariationTransform(new AffineTransform(-0.6, 0.2, 0.1, 0.7, 0.4, -0.2),
+                                         new Variation[]{Variation.SINUSOIDAL, Variation.HORSESHOE},
+                                         new double[]{0.5, 0.5}));
+        IFS ifs = new IFS(flame);
+        measure("VariationTransform.apply(x, y, out)", 10_000_000, (ops) -> {
+                double[] p = new double[]{0.1, 0.2};
+                for (long i = 0; i < ops; i++) {
+                    flame.get((int)(i % 3)).apply(p[0], p[1], p);
+                }
+                return p[0];
+            });
+        CompiledIFS system = ifs.compile();
+        measure("CompiledIFS.apply(i, p) with variations", 10_000_000, (ops) -> {
+                double[] p = new double[]{0.1, 0.2};
+                for (long i = 0; i < ops; i++) {
+                    system.apply((int)(i % 3), p);
+                }
+                return p[0];
+            });
+    }
+
+    /**
+     * Selection of a transform from the system
+     */
+    static void choose() {
+        IFS ifs = fern();
+        measure("IFS.chooseTransform", 10_000_000, (ops) -> {
+                double total = 0.0;
+                for (long i = 0; i < ops; i++) {
+                    total += ifs.chooseTransform().hashCode();
+                }
+                return total;
+            });
+        measure("IFS.chooseIndex(u)", 10_000_000, (ops) -> {
+                double total = 0.0;
+                double u = 0.5;
+                for (long i = 0; i < ops; i++) {
+                    u = (u + 0.6180339887498949) % 1.0;
+                    total += ifs.chooseIndex(u);
+                }
+                return total;
+            });
+    }
+
+    /**
+     * Whole evaluator runs, one operation is one point-step
+     */
+    static void evaluators() {
+        IFS ifs = fern();
+        int[][] sizes = {{1_000, 100}, {10_000, 100}, {1_000, 1_000}};
+        for (int[] size : sizes) {
+            int numPoints = size[0];
+            int iterations = size[1];
+            long steps = (long) numPoints * iterations;
+            String label = String.format("(%d x %d)", numPoints, iterations);
+            measure("RandomIFSEvaluator.run" + label, steps, (ops) -> {
+                    RandomIFSEvaluator e = new RandomIFSEvaluator(ifs, numPoints, iterations);
+                    return e.run().size();
+                });
+            measure("RandomIFSEvaluator.stream" + label, steps, (ops) -> {
+                    RandomIFSEvaluator e = new RandomIFSEvaluator(ifs, numPoints, iterations);
+                    Histogram h = new Histogram(500, 500, -3.0, 3.0, 0.0, 10.0);
+                    e.stream(h);
+                    return h.counts[0];
+                });
+            measure("ParallelIFSEvaluator.run" + label, steps, (ops) -> {
+                    ParallelIFSEvaluator e = new ParallelIFSEvaluator(ifs, numPoints, iterations, 1L);
+                    Histogram h = new Histogram(500, 500, -3.0, 3.0, 0.0, 10.0);
+                    e.run(h);
+                    return h.counts[0];
+                });
+        }
+    }
+
+    /**
+     * Shared atomic histogram against a histogram per thread merged at the
+     * end, on a small image where threads contend for the same pixels and
+     * on a large one where the copies cost memory and merge time
+     */
+    static void accumulators() {
+        IFS ifs = fern();
+        int[] sides = {64, 500, 2000};
+        for (int side : sides) {
+            String label = String.format("(%d px)", side);
+            measure("ParallelIFSEvaluator.run merged" + label, 1_000_000, (ops) -> {
+                    ParallelIFSEvaluator e = new ParallelIFSEvaluator(ifs, 10_000, 100, 1L);
+                    Histogram h = new Histogram(side, side, -3.0, 3.0, 0.0, 10.0);
+                    e.run(h);
+                    return h.counts[0];
+                });
+            measure("ParallelIFSEvaluator.run shared" + label, 1_000_000, (ops) -> {
+                    ParallelIFSEvaluator e = new ParallelIFSEvaluator(ifs, 10_000, 100, 1L);
+                    Histogram h = new AtomicHistogram(side, side, -3.0, 3.0, 0.0, 10.0);
+                    e.run(h);
+                    return h.counts[0];
+                });
+        }
+    }
+
+    /**
+     * Plotting points and writing images
+     */
+    static void images() {
+        measure("Image.plot(x, y)", 10_000_000, (ops) -> {
+                Image img = new Image(500, 500, -1.0, 1.0, -1.0, 1.0);
+                double x = 0.0;
+                for (long i = 0; i < ops; i++) {
+                    x = (x + 0.6180339887498949) % 1.0;
+                    img.plot(x, 1.0 - x - 0.5);
+                }
+                return img.density.counts[0];
+            });
+        Image img = new Image(1000, 1000, -1.0, 1.0, -1.0, 1.0);
+        new RandomIFSEvaluator(fern(), 1000, 100).stream(img);
+        String[] extensions = {".jpg", ".png", ".ppm", ".pgm"};
+        for (String extension : extensions) {
+            File out;
+            try {
+                out = File.createTempFile("benchmark", extension);
+                out.deleteOnExit();
+            } catch (IOException e) {
+                throw new RuntimeException("Could not create a temporary file", e);
+            }
+            measure("Image.save(1000 x 1000 " + extension + ")", 5, (ops) -> {
+                    for (long i = 0; i < ops; i++) {
+                        img.save(out.getPath());
+                    }
+                    return out.length();
+                });
+        }
+        File out;
+        try {
+            out = File.createTempFile("benchmark", ".png");
+            out.deleteOnExit();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not create a temporary file", e);
+        }
+        ImageEncoder fastest = new ImageEncoder.Png(Deflater.BEST_SPEED);
+        measure("Image.save(1000 x 1000 .png level 1)", 5, (ops) -> {
+                for (long i = 0; i < ops; i++) {
+                    img.save(out.getPath(), fastest);
+                }
+                return out.length();
+            });
+    }
+
+    /**
+     * runs all benchmarks
+     * @param args optional regular expression selecting cases by name
+     */
+    public static void main(String[] args) {
+        if (args.length > 0) {
+            filter = Pattern.compile(args[0]);
+        }
+        transforms();
+        choose();
+        evaluators();
+        accumulators();
+        images();
+    }
+}
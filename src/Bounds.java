@@ -0,0 +1,222 @@
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.Vector;
+
+/**
+ * A rectangle in the plane, [xmin, xmax] x [ymin, ymax], used to choose
+ * the plotting range of an <code> IFS </code> so the image covers its
+ * attractor and no samples are wasted outside of it.
+ * Two estimates are available. For a system of contracting affine maps a
+ * disc that every map sends into itself, and so contains the attractor,
+ * follows from the fixed points and contraction factors alone. A pilot run
+ * of the chaos game gives a tighter range, optionally trimming rarely
+ * visited outliers. <code> of </code> combines the two.
+ * @author J. Marcus Hughes
+ */
+public class Bounds {
+    final double xmin; // least x value
+    final double xmax; // greatest x value
+    final double ymin; // least y value
+    final double ymax; // greatest y value
+
+    /**
+     * Constructs a rectangle
+     * @param xmin least x value
+     * @param xmax greatest x value
+     * @param ymin least y value
+     * @param ymax greatest y value
+     */
+    Bounds(double xmin, double xmax, double ymin, double ymax) {
+        assert xmin <= xmax : "xmin should be at most xmax";
+        assert ymin <= ymax : "ymin should be at most ymax";
+        this.xmin = xmin;
+        this.xmax = xmax;
+        this.ymin = ymin;
+        this.ymax = ymax;
+    }
+
+    /**
+     * Best available range for the attractor: a pilot sample, kept inside
+     * the contraction bound when the maps are contracting affine ones,
+     * with a small margin. Without that bound, e.g. for nonlinear maps that
+     * throw rare points far away, the sample is trimmed a little instead.
+     * @param ifs system to bound
+     */
+    public static Bounds of(IFS ifs) {
+        return of(ifs, 100000);
+    }
+
+    /**
+     * Best available range for the attractor from a pilot run of a given
+     * length, e.g. a small fraction of the render it is for
+     * @param ifs system to bound
+     * @param samples number of points in the pilot run
+     * @see #of(IFS)
+     */
+    public static Bounds of(IFS ifs, int samples) {
+        Bounds contraction = fromContractions(ifs);
+        if (contraction == null) {
+            return fromSample(ifs, samples, 0.001, 1L).pad(0.02);
+        }
+        return fromSample(ifs, samples, 0.0, 1L).intersect(contraction).pad(0.02);
+    }
+
+    /**
+     * Guaranteed range for a system of contracting affine maps. With c the
+     * mean of the fixed points, s_i the largest stretch of map i and
+     * r = max |T_i(c) - c| / (1 - s_i), every map sends the disc of radius
+     * r around c into itself, so the attractor lies inside it.
+     * @param ifs system to bound
+     * @return square around the disc, or <code> null </code> if some map is
+     *         not affine or does not contract
+     */
+    public static Bounds fromContractions(IFS ifs) {
+        int n = ifs.size();
+        double cx = 0.0, cy = 0.0;
+        double[] stretch = new double[n];
+        for (int i = 0; i < n; i++) {
+            if (!(ifs.transform(i) instanceof AffineTransform)) {
+                return null;
+            }
+            AffineTransform t = (AffineTransform) ifs.transform(i);
+            // largest singular value of the matrix, from the eigenvalues of A^T A
+            double trace = t.a * t.a + t.b * t.b + t.c * t.c + t.d * t.d;
+            double det = t.a * t.d - t.b * t.c;
+            double disc = Math.sqrt(Math.max(0.0, trace * trace - 4 * det * det));
+            stretch[i] = Math.sqrt((trace + disc) / 2);
+            if (stretch[i] >= 1.0) {
+                return null;
+            }
+            // fixed point solves (I - A) z = shift, invertible as A contracts
+            double p = 1 - t.a, q = -t.b, r = -t.c, s = 1 - t.d;
+            double inv = 1.0 / (p * s - q * r);
+            cx += (s * t.e - q * t.f) * inv / n;
+            cy += (p * t.f - r * t.e) * inv / n;
+        }
+        double radius = 0.0;
+        double[] image = new double[2];
+        for (int i = 0; i < n; i++) {
+            ifs.transform(i).apply(cx, cy, image);
+            double moved = Math.hypot(image[0] - cx, image[1] - cy);
+            radius = Math.max(radius, moved / (1 - stretch[i]));
+        }
+        return new Bounds(cx - radius, cx + radius, cy - radius, cy + radius);
+    }
+
+    /**
+     * Range of a pilot run of the chaos game
+     * @param ifs system to bound
+     * @param samples number of points in the pilot run
+     * @param trim fraction of points allowed outside on each side, 0 for none
+     * @param seed makes the result deterministic
+     */
+    public static Bounds fromSample(IFS ifs, int samples, double trim, long seed) {
+        CompiledIFS system = ifs.compile();
+        SplittableRandom rng = new SplittableRandom(seed);
+        double[] p = new double[]{rng.nextDouble(), rng.nextDouble()};
+        for (int it = 0; it < 100; it++) {
+            system.apply(system.chooseIndex(rng.nextDouble()), p); // settle onto the attractor
+        }
+        double[] xs = new double[samples];
+        double[] ys = new double[samples];
+        for (int k = 0; k < samples; k++) {
+            system.apply(system.chooseIndex(rng.nextDouble()), p);
+            xs[k] = p[0];
+            ys[k] = p[1];
+        }
+        Arrays.sort(xs);
+        Arrays.sort(ys);
+        int lo = (int)(trim * (samples - 1));
+        int hi = samples - 1 - lo;
+        return new Bounds(xs[lo], xs[hi], ys[lo], ys[hi]);
+    }
+
+    /**
+     * @param other another rectangle
+     * @return the overlap of the two, this rectangle if they do not overlap
+     */
+    public Bounds intersect(Bounds other) {
+        double x0 = Math.max(xmin, other.xmin), x1 = Math.min(xmax, other.xmax);
+        double y0 = Math.max(ymin, other.ymin), y1 = Math.min(ymax, other.ymax);
+        if (x0 > x1 || y0 > y1) {
+            return this;
+        }
+        return new Bounds(x0, x1, y0, y1);
+    }
+
+    /**
+     * @param other another rectangle
+     * @return the smallest rectangle holding both
+     */
+    public Bounds union(Bounds other) {
+        return new Bounds(Math.min(xmin, other.xmin), Math.max(xmax, other.xmax),
+                          Math.min(ymin, other.ymin), Math.max(ymax, other.ymax));
+    }
+
+    /**
+     * @param fraction margin on each side as a fraction of the larger side
+     * @return a larger rectangle, never of zero width or height
+     */
+    public Bounds pad(double fraction) {
+        double margin = Math.max(fraction * Math.max(xmax - xmin, ymax - ymin), 1e-9);
+        return new Bounds(xmin - margin, xmax + margin, ymin - margin, ymax + margin);
+    }
+
+    /**
+     * Grow the shorter side so the rectangle has the aspect ratio of an
+     * image, keeping it centered
+     * @param width pixels wide
+     * @param height pixels high
+     */
+    public Bounds withAspect(int width, int height) {
+        double w = xmax - xmin, h = ymax - ymin;
+        double aspect = (double) width / height;
+        if (w / h < aspect) {
+            double grow = (h * aspect - w) / 2;
+            return new Bounds(xmin - grow, xmax + grow, ymin, ymax);
+        }
+        double grow = (w / aspect - h) / 2;
+        return new Bounds(xmin, xmax, ymin - grow, ymax + grow);
+    }
+
+    /**
+     * An image of this range as large as fits in the given size without
+     * stretching either axis
+     * @param maxWidth most pixels wide
+     * @param maxHeight most pixels high
+     */
+    public Image image(int maxWidth, int maxHeight) {
+        double scale = Math.min(maxWidth / (xmax - xmin), maxHeight / (ymax - ymin));
+        int width = (int) Math.max(1, Math.min(maxWidth, Math.round((xmax - xmin) * scale)));
+        int height = (int) Math.max(1, Math.min(maxHeight, Math.round((ymax - ymin) * scale)));
+        return new Image(width, height, xmin, xmax, ymin, ymax);
+    }
+
+    /**
+     * String representation
+     */
+    public String toString() {
+        return String.format("[%f, %f] x [%f, %f]", xmin, xmax, ymin, ymax);
+    }
+
+    /**
+     * testing main, bounds of the Barnsley fern
+     */
+    public static void main(String[] args) {
+        Vector<Transform> transforms = new Vector<Transform>();
+        Vector<Double> probabilities = new Vector<Double>();
+        transforms.add(new AffineTransform(0.0, 0.0, 0.0, 0.16, 0.0, 0.0));
+        probabilities.add(0.01);
+        transforms.add(new AffineTransform(0.85, 0.04, -0.04, 0.85, 0.0, 1.6));
+        probabilities.add(0.85);
+        transforms.add(new AffineTransform(0.20, -0.26, 0.23, 0.22, 0.0, 1.6));
+        probabilities.add(0.07);
+        transforms.add(new AffineTransform(-0.15, 0.28, 0.26, 0.24, 0.0, 0.44));
+        probabilities.add(0.07);
+        IFS fern = new IFS(transforms, probabilities);
+
+        System.out.println("contraction " + fromContractions(fern));
+        System.out.println("sample      " + fromSample(fern, 100000, 0.0, 1L));
+        System.out.println("combined    " + of(fern));
+    }
+}
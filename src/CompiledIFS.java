@@ -0,0 +1,148 @@
+/**
+ * An immutable, flattened form of an <code> IFS </code> for the inner loop
+ * of the evaluators. The six coefficients of every affine transform are
+ * packed next to each other in one array, the selection probabilities are
+ * an alias table and the colors are packed RGB values, so evaluating a step
+ * touches only primitive arrays and makes no virtual calls.
+ * A <code> VariationTransform </code> contributes its affine part to the
+ * same array and its variations to one shared table, transform i using
+ * entries <code> varStart[i] </code> up to <code> varStart[i + 1] </code>,
+ * evaluated by the switch in <code> Variation.apply </code>. Purely affine
+ * transforms skip the table.
+ * Made with <code> IFS.compile() </code>; the <code> IFS </code> stays the
+ * mutable builder.
+ * @author J. Marcus Hughes
+ * @see IFS
+ */
+final class CompiledIFS {
+    final int size;              // number of transforms
+    final double[] coefficients; // a, b, c, d, e, f of transform i at 6 * i
+    final double[] probabilities; // normalized chance of each transform
+    final AliasTable table;      // constant time sampler over probabilities
+    final int[] colors;          // packed RGB color of each transform
+    final boolean[] affine;      // whether transform i has no variations
+    final int[] varStart;        // first table entry of transform i, size + 1 long
+    final Variation[] varKind;   // variation of each table entry
+    final double[] varWeight;    // weight of each table entry
+
+    /**
+     * Flatten a system of affine and variation transforms
+     * @param transforms the transforms, each an <code> AffineTransform </code>
+     *        or a <code> VariationTransform </code>
+     * @param weights relative chance of each transform
+     */
+    CompiledIFS(Transform[] transforms, double[] weights) {
+        this.size = transforms.length;
+        this.coefficients = new double[6 * size];
+        this.probabilities = new double[size];
+        this.colors = new int[size];
+        this.affine = new boolean[size];
+        this.varStart = new int[size + 1];
+        double total = 0.0;
+        for (int i = 0; i < size; i++) {
+            total += weights[i];
+            int count = 0;
+            if (transforms[i] instanceof VariationTransform) {
+                count = ((VariationTransform) transforms[i]).variations.length;
+            } else if (!(transforms[i] instanceof AffineTransform)) {
+                throw new RuntimeException("Only affine and variation transforms can be compiled, not "
+                                           + transforms[i].transformName);
+            }
+            varStart[i + 1] = varStart[i] + count;
+        }
+        this.varKind = new Variation[varStart[size]];
+        this.varWeight = new double[varStart[size]];
+        for (int i = 0; i < size; i++) {
+            AffineTransform t;
+            if (transforms[i] instanceof VariationTransform) {
+                VariationTransform v = (VariationTransform) transforms[i];
+                t = v.pre;
+                System.arraycopy(v.variations, 0, varKind, varStart[i], v.variations.length);
+                System.arraycopy(v.weights, 0, varWeight, varStart[i], v.weights.length);
+            } else {
+                t = (AffineTransform) transforms[i];
+                affine[i] = true;
+            }
+            coefficients[6 * i]     = t.a;
+            coefficients[6 * i + 1] = t.b;
+            coefficients[6 * i + 2] = t.c;
+            coefficients[6 * i + 3] = t.d;
+            coefficients[6 * i + 4] = t.e;
+            coefficients[6 * i + 5] = t.f;
+            probabilities[i] = weights[i] / total;
+            colors[i] = transforms[i].color.getRGB();
+        }
+        this.table = new AliasTable(probabilities, size);
+    }
+
+    /**
+     * Select the index of a transformation using the probability weighting
+     * @param u uniformly distributed number in [0, 1)
+     * @return index of the chosen transform
+     */
+    int chooseIndex(double u) {
+        return table.choose(u);
+    }
+
+    /**
+     * Move a point by a transform
+     * @param i index of the transform
+     * @param p {x, y}, overwritten with the new point
+     */
+    void apply(int i, double[] p) {
+        double[] k = coefficients;
+        int o = 6 * i;
+        double x = p[0];
+        double y = p[1];
+        double u = k[o] * x + k[o + 1] * y + k[o + 4];
+        double v = k[o + 2] * x + k[o + 3] * y + k[o + 5];
+        if (affine[i]) {
+            p[0] = u;
+            p[1] = v;
+            return;
+        }
+        p[0] = 0.0;
+        p[1] = 0.0;
+        for (int j = varStart[i]; j < varStart[i + 1]; j++) {
+            Variation.apply(varKind[j], varWeight[j], u, v, p);
+        }
+    }
+
+    /**
+     * Move a batch of points in parallel arrays by a transform
+     * @param i index of the transform
+     * @param xs x coordinates
+     * @param ys y coordinates
+     * @param index positions in <code> xs </code> and <code> ys </code> to move
+     * @param from first entry of <code> index </code> to use
+     * @param to one past the last entry of <code> index </code> to use
+     */
+    void apply(int i, double[] xs, double[] ys, int[] index, int from, int to) {
+        int o = 6 * i;
+        double a = coefficients[o], b = coefficients[o + 1];
+        double c = coefficients[o + 2], d = coefficients[o + 3];
+        double e = coefficients[o + 4], f = coefficients[o + 5];
+        if (affine[i]) {
+            for (int k = from; k < to; k++) {
+                int n = index[k];
+                double x = xs[n];
+                double y = ys[n];
+                xs[n] = a * x + b * y + e;
+                ys[n] = c * x + d * y + f;
+            }
+            return;
+        }
+        for (int k = from; k < to; k++) {
+            int n = index[k];
+            double x = xs[n];
+            double y = ys[n];
+            double u = a * x + b * y + e;
+            double v = c * x + d * y + f;
+            xs[n] = 0.0;
+            ys[n] = 0.0;
+            for (int j = varStart[i]; j < varStart[i + 1]; j++) {
+                Variation.apply(varKind[j], varWeight[j], u, v, xs, n, ys, n);
+            }
+        }
+    }
+}
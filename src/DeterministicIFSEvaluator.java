@@ -0,0 +1,185 @@
+import java.util.Arrays;
+import java.util.Vector;
+
+/**
+ * An iterated function system <code> IFS </code> evaluated
+ * deterministically: every round applies every transform to every point
+ * of a set, and the images together form the next set. Left alone the set
+ * grows as k^n for k transforms, so after each round the points are
+ * deduplicated at the resolution of the target image, keeping one point per
+ * pixel. The set can then never be larger than the image, and the rounds
+ * stop once the occupied pixels no longer change.
+ * Unlike the random method every pixel of the attractor is found, however
+ * unlikely the maps leading to it are, and the image is free of noise.
+ * @author J. Marcus Hughes
+ * @see RandomIFSEvaluator
+ */
+public class DeterministicIFSEvaluator extends IFSEvaluator {
+    int width;      // pixels wide of the deduplication grid
+    int height;     // pixels high of the deduplication grid
+    Bounds bounds;  // region covered by the grid
+    int maxRounds;  // most rounds to run
+    int rounds;     // rounds run so far
+    double[] xs;    // x coordinates of the current set
+    double[] ys;    // y coordinates of the current set
+    int[] from;     // index of the transform that produced each point
+    int size;       // number of points in the current set
+    private double dxpp; // pixels per unit of x
+    private double dypp; // pixels per unit of y
+
+    /**
+     * Set up the evaluator over the attractor of the system
+     * @param ifs an initialized iterated function system
+     * @param width pixels wide of the deduplication grid
+     * @param height pixels high of the deduplication grid
+     * @param maxRounds most rounds to run
+     */
+    DeterministicIFSEvaluator(IFS ifs, int width, int height, int maxRounds) {
+        this(ifs, width, height, Bounds.of(ifs).withAspect(width, height), maxRounds);
+    }
+
+    /**
+     * Set up the evaluator over a chosen region
+     * @param ifs an initialized iterated function system
+     * @param width pixels wide of the deduplication grid
+     * @param height pixels high of the deduplication grid
+     * @param bounds region covered by the grid, points outside it are dropped
+     * @param maxRounds most rounds to run
+     */
+    DeterministicIFSEvaluator(IFS ifs, int width, int height, Bounds bounds, int maxRounds) {
+        assert maxRounds > 0 : "maxRounds must be positive";
+        this.ifs = ifs;
+        this.width = width;
+        this.height = height;
+        this.bounds = bounds;
+        this.maxRounds = maxRounds;
+        this.dxpp = width / (bounds.xmax - bounds.xmin);
+        this.dypp = height / (bounds.ymax - bounds.ymin);
+    }
+
+    /**
+     * Run rounds from the center of the region until the occupied pixels
+     * stop changing or <code> maxRounds </code> is reached
+     * @return number of rounds run
+     */
+    public int run() {
+        CompiledIFS system = ifs.compile();
+        int capacity = width * height;
+        double[] nextXs = new double[capacity];
+        double[] nextYs = new double[capacity];
+        int[] nextFrom = new int[capacity];
+        long[] occupied = new long[(capacity + 63) / 64];
+        long[] previous = new long[occupied.length];
+
+        xs = new double[capacity];
+        ys = new double[capacity];
+        from = new int[capacity];
+        xs[0] = (bounds.xmin + bounds.xmax) / 2;
+        ys[0] = (bounds.ymin + bounds.ymax) / 2;
+        from[0] = -1;
+        size = 1;
+
+        double[] p = new double[2];
+        for (rounds = 0; rounds < maxRounds; ) {
+            Arrays.fill(occupied, 0L);
+            int next = 0;
+            for (int n = 0; n < size; n++) {
+                for (int t = 0; t < system.size; t++) {
+                    p[0] = xs[n];
+                    p[1] = ys[n];
+                    system.apply(t, p);
+                    int k = pixel(p[0], p[1]);
+                    if (k >= 0 && (occupied[k >>> 6] & (1L << k)) == 0) {
+                        occupied[k >>> 6] |= 1L << k;
+                        nextXs[next] = p[0];
+                        nextYs[next] = p[1];
+                        nextFrom[next] = t;
+                        next++;
+                    }
+                }
+            }
+            // swap the new set in
+            double[] swap = xs; xs = nextXs; nextXs = swap;
+            swap = ys; ys = nextYs; nextYs = swap;
+            int[] swapFrom = from; from = nextFrom; nextFrom = swapFrom;
+            size = next;
+            rounds++;
+
+            if (Arrays.equals(occupied, previous)) {
+                break;
+            }
+            long[] swapBits = previous; previous = occupied; occupied = swapBits;
+        }
+        return rounds;
+    }
+
+    /**
+     * Index of the pixel holding a point
+     * @return row by row index, -1 if outside the region
+     */
+    private int pixel(double x, double y) {
+        if (x > bounds.xmin && x < bounds.xmax && y > bounds.ymin && y < bounds.ymax) {
+            int i = Math.min(width - 1, (int)((x - bounds.xmin) * dxpp));
+            int j = Math.min(height - 1, (int)((y - bounds.ymin) * dypp));
+            return j * width + i;
+        }
+        return -1;
+    }
+
+    /**
+     * Send the final set to a sink, running the rounds first if needed.
+     * Every point is reported with the last round as its iteration.
+     * @param sink where the points are sent
+     */
+    public void stream(PointSink sink) {
+        if (xs == null) {
+            run();
+        }
+        for (int n = 0; n < size; n++) {
+            sink.accept(rounds, from[n], xs[n], ys[n]);
+        }
+    }
+
+    /**
+     * Stream the final set into a sink
+     * @see IFSEvaluator
+     */
+    public void evaluate(PointSink sink) {
+        stream(sink);
+    }
+
+    /**
+     * Plot the final set over the whole region
+     * @param filename where to save image
+     */
+    public void plot(String filename) {
+        Image img = new Image(width, height, bounds.xmin, bounds.xmax, bounds.ymin, bounds.ymax);
+        img.setColors(ifs);
+        stream(img);
+        img.save(filename);
+    }
+
+    /**
+     * testing main, the Barnsley fern
+     */
+    public static void main(String[] args) {
+        Vector<Transform> transforms = new Vector<Transform>();
+        Vector<Double> probabilities = new Vector<Double>();
+        transforms.add(new AffineTransform(0.0, 0.0, 0.0, 0.16, 0.0, 0.0));
+        probabilities.add(0.01);
+        transforms.add(new AffineTransform(0.85, 0.04, -0.04, 0.85, 0.0, 1.6));
+        probabilities.add(0.85);
+        transforms.add(new AffineTransform(0.20, -0.26, 0.23, 0.22, 0.0, 1.6));
+        probabilities.add(0.07);
+        transforms.add(new AffineTransform(-0.15, 0.28, 0.26, 0.24, 0.0, 0.44));
+        probabilities.add(0.07);
+        IFS fern = new IFS(transforms, probabilities);
+
+        DeterministicIFSEvaluator ifsRunner = new DeterministicIFSEvaluator(fern, 500, 500, 200);
+        long start = System.nanoTime();
+        int rounds = ifsRunner.run();
+        System.out.printf("%d points after %d rounds in %.2f s%n",
+                          ifsRunner.size, rounds, (System.nanoTime() - start) / 1e9);
+        ifsRunner.plot("fern.jpg");
+    }
+}
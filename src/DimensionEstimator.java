@@ -0,0 +1,228 @@
+import java.util.Vector;
+
+/**
+ * A running estimate of the box-counting dimension, fed point by point
+ * from an evaluator, so the point set never has to be stored.
+ * For every level j up to <code> maxLevel </code> the region is split into
+ * 2^j by 2^j boxes and a bitset records which have been hit. A point that
+ * lands in an occupied box at some level is in occupied boxes at every
+ * coarser level too, so the levels are visited from finest to coarsest and
+ * the walk stops at the first box already seen; on a settled attractor
+ * almost every point costs one bit test.
+ * <p>
+ * Every <code> checkEvery </code> points the dimension is fitted with
+ * <code> LinearRegression </code> over the levels the number of points can
+ * resolve. Once the estimate has moved less than a tolerance for several
+ * checks in a row, with a good enough R^2, the estimator reports that it
+ * is done and evaluators stop early. Points off the attractor at the start
+ * of each walk are best left out with the burn-in of the evaluator.
+ * <p>
+ * For the parallel evaluator every thread counts into its own fork, which
+ * checks its own estimate for stopping. Joining ORs the bitsets together,
+ * recounts the occupied boxes and refits, since the boxes two parts hit
+ * overlap and their counts cannot simply be added. Each fork holds a full
+ * set of bitsets, 4^maxLevel / 6 bytes.
+ * @author J. Marcus Hughes
+ * @see MinkowskiDimension
+ */
+public class DimensionEstimator implements PointSink {
+    double xmin; // least allowed x value
+    double xmax; // most allowed x value
+    double ymin; // least allowed y value
+    double ymax; // most allowed y value
+    int maxLevel;   // finest level tracked, 2^maxLevel boxes per side
+    long[][] occupied; // bitset of hit boxes per level
+    long[] counts;     // hit boxes per level
+    long points;       // points counted
+    int checkEvery;    // points between fits
+    double tolerance;  // largest change between fits that counts as stable
+    double minR2;      // smallest R^2 of a fit that counts as stable
+    int stableChecks;  // stable fits in a row needed to be done
+    int stable;        // stable fits in a row so far
+    double dimension;  // latest estimate, NaN before the first fit
+    LinearRegression fit; // latest fit, null before the first fit
+    private double scalex; // finest boxes per unit of x
+    private double scaley; // finest boxes per unit of y
+
+    /**
+     * Constructs an estimator over a region
+     * @param xmin least x value counted
+     * @param xmax greatest x value counted
+     * @param ymin least y value counted
+     * @param ymax greatest y value counted
+     * @param maxLevel finest level, at most 15 as the bitset has 4^maxLevel bits
+     */
+    DimensionEstimator(double xmin, double xmax, double ymin, double ymax,
+                       int maxLevel) {
+        assert xmin < xmax : "xmin should be less than xmax";
+        assert ymin < ymax : "ymin should be less than ymax";
+        if (maxLevel < 3 || maxLevel > 15) {
+            throw new RuntimeException("maxLevel must be between 3 and 15");
+        }
+        this.xmin = xmin;
+        this.xmax = xmax;
+        this.ymin = ymin;
+        this.ymax = ymax;
+        this.maxLevel = maxLevel;
+        this.occupied = new long[maxLevel + 1][];
+        for (int j = 0; j <= maxLevel; j++) {
+            this.occupied[j] = new long[Math.max(1, (1 << (2 * j)) / 64)];
+        }
+        this.counts = new long[maxLevel + 1];
+        this.scalex = (1 << maxLevel) / (xmax - xmin);
+        this.scaley = (1 << maxLevel) / (ymax - ymin);
+        this.checkEvery = 1 << 16;
+        this.tolerance = 1e-3;
+        this.minR2 = 0.99;
+        this.stableChecks = 3;
+        this.dimension = Double.NaN;
+    }
+
+    /**
+     * Change when the estimate counts as converged
+     * @param checkEvery points between fits
+     * @param tolerance largest change in the estimate between fits that is stable
+     * @param minR2 smallest R^2 of a fit that is stable
+     * @param stableChecks stable fits in a row needed
+     */
+    public void setStopping(int checkEvery, double tolerance, double minR2, int stableChecks) {
+        this.checkEvery = checkEvery;
+        this.tolerance = tolerance;
+        this.minR2 = minR2;
+        this.stableChecks = stableChecks;
+    }
+
+    /**
+     * Count a point of a trajectory
+     * @see PointSink
+     */
+    public void accept(int iteration, int transform, double x, double y) {
+        if (!(x >= xmin && x < xmax && y >= ymin && y < ymax)) {
+            return;
+        }
+        int last = (1 << maxLevel) - 1;
+        int qx = Math.min(last, (int)((x - xmin) * scalex));
+        int qy = Math.min(last, (int)((y - ymin) * scaley));
+        for (int j = maxLevel; j >= 0; j--) {
+            int shift = maxLevel - j;
+            int box = ((qy >> shift) << j) | (qx >> shift);
+            long[] bits = occupied[j];
+            long mask = 1L << box;
+            if ((bits[box >>> 6] & mask) != 0) {
+                break; // and so is every coarser box
+            }
+            bits[box >>> 6] |= mask;
+            counts[j]++;
+        }
+        if (++points % checkEvery == 0) {
+            update();
+        }
+    }
+
+    /**
+     * @return <code> true </code>, parts count into their own bitsets
+     * @see PointSink
+     */
+    public boolean canFork() {
+        return true;
+    }
+
+    /**
+     * @return an empty estimator over the same region, levels and stopping
+     * @see PointSink
+     */
+    public PointSink fork() {
+        DimensionEstimator part = new DimensionEstimator(xmin, xmax, ymin, ymax, maxLevel);
+        part.setStopping(checkEvery, tolerance, minR2, stableChecks);
+        return part;
+    }
+
+    /**
+     * Combine the boxes hit by a part made by <code> fork </code> and refit
+     * @see PointSink
+     */
+    public void join(PointSink part) {
+        if (part == this) {
+            return;
+        }
+        DimensionEstimator other = (DimensionEstimator) part;
+        if (other.maxLevel != maxLevel || other.xmin != xmin || other.xmax != xmax
+            || other.ymin != ymin || other.ymax != ymax) {
+            throw new RuntimeException("Estimators must cover the same region and levels to join");
+        }
+        for (int j = 0; j <= maxLevel; j++) {
+            long[] bits = occupied[j];
+            long[] more = other.occupied[j];
+            long count = 0;
+            for (int w = 0; w < bits.length; w++) {
+                bits[w] |= more[w];
+                count += Long.bitCount(bits[w]);
+            }
+            counts[j] = count;
+        }
+        points += other.points;
+        update();
+    }
+
+    /**
+     * Refit the dimension and track whether it has settled
+     */
+    void update() {
+        int resolved = MinkowskiDimension.defaultMaxLevel((int) Math.min(points, Integer.MAX_VALUE));
+        int top = Math.min(maxLevel, resolved);
+        int bottom = 1;
+        if (top - bottom < 2) {
+            return;
+        }
+        double[] logInverseSize = new double[top - bottom + 1];
+        double[] logCount = new double[top - bottom + 1];
+        for (int j = bottom; j <= top; j++) {
+            logInverseSize[j - bottom] = j * Math.log(2);
+            logCount[j - bottom] = Math.log(Math.max(1, counts[j]));
+        }
+        LinearRegression fit = new LinearRegression(logInverseSize, logCount);
+        double previous = this.dimension;
+        this.fit = fit;
+        this.dimension = fit.beta1();
+        if (Math.abs(dimension - previous) < tolerance && fit.R2() >= minR2) {
+            stable++;
+        } else {
+            stable = 0;
+        }
+    }
+
+    /**
+     * @return <code> true </code> once the estimate has been stable for
+     *         enough checks in a row
+     */
+    public boolean isDone() {
+        return stable >= stableChecks;
+    }
+
+    /**
+     * String representation
+     */
+    public String toString() {
+        return String.format("dimension %.4f after %d points, %s",
+                             dimension, points, fit);
+    }
+
+    /**
+     * testing function, the Sierpinski triangle has dimension log 3 / log 2 = 1.585
+     */
+    public static void main(String[] args) {
+        Vector<Transform> transforms = new Vector<Transform>();
+        Matrix shrink = new Matrix(0.5, 0.0, 0.0, 0.5);
+        transforms.add(new AffineTransform(shrink, new Matrix(0.0, 0.0)));
+        transforms.add(new AffineTransform(shrink, new Matrix(0.5, 0.0)));
+        transforms.add(new AffineTransform(shrink, new Matrix(0.0, 0.5)));
+        IFS system = new IFS(transforms);
+
+        DimensionEstimator estimator = new DimensionEstimator(0.0, 1.0, 0.0, 1.0, 12);
+        RandomIFSEvaluator ifsRunner = new RandomIFSEvaluator(system, 1000000, 1000);
+        ifsRunner.setBurnIn(20);
+        ifsRunner.stream(estimator);
+        System.out.println(estimator);
+        System.out.println("expected " + Math.log(3) / Math.log(2));
+    }
+}
@@ -0,0 +1,228 @@
+/**
+ * A count of how many points land in each pixel of a region of the plane.
+ * Uses the same mapping from the real plane to pixels as <code> Image </code>.
+ * Histograms over the same region can be merged, so each thread can
+ * accumulate into its own and combine them at the end. When a copy per
+ * thread is too large, <code> AtomicHistogram </code> is shared instead.
+ * Optionally the color of the transform that produced each point is
+ * summed per channel so that an average color per pixel is known. Points
+ * without a transform, such as starting points, are counted but add no
+ * color, so the colored hits are counted separately to average over.
+ * @author J. Marcus Hughes
+ */
+public class Histogram implements PointSink {
+    double xmin; // least allowed x value
+    double xmax; // most allowed x value
+    double ymin; // least allowed y value
+    double ymax; // most allowed y value
+    int width;   // width in pixels
+    int height;  // height in pixels
+    private double dxpp; //amount of x movement per pixel
+    private double dypp; //amount of y movement per pixel
+    long[] counts; // hits per pixel, row by row
+    int[] palette; // RGB color per transform index, null if not colored
+    long[] red;    // sum of red channel per pixel, null if not colored
+    long[] green;  // sum of green channel per pixel, null if not colored
+    long[] blue;   // sum of blue channel per pixel, null if not colored
+    long[] hues;   // hits per pixel that added a color, null if not colored
+
+    /**
+     * Constructs an empty histogram of the given width and height that maps
+     * from the given limits
+     * @param width pixels wide
+     * @param height pixels high
+     * @param xmin least x value to count
+     * @param xmax greatest x value to count
+     * @param ymin least y value to count
+     * @param ymax greatest y value to count 
+     */
+    public Histogram(int width, int height,
+                     double xmin, double xmax,
+                     double ymin, double ymax) {
+        assert xmin < xmax : "xmin should be less than xmax";
+        assert ymin < ymax : "ymin should be less than ymax";
+        this.xmin = xmin;
+        this.xmax = xmax;
+        this.ymin = ymin;
+        this.ymax = ymax;
+        this.width = width;
+        this.height = height;
+        this.counts = new long[width * height];
+        this.dxpp = width / (xmax - xmin);
+        this.dypp = height / (ymax - ymin);
+    }
+
+    /**
+     * @return an empty histogram over the same region and size
+     */
+    public Histogram emptyCopy() {
+        Histogram h = new Histogram(width, height, xmin, xmax, ymin, ymax);
+        if (palette != null) {
+            h.setColors(palette);
+        }
+        return h;
+    }
+
+    /**
+     * Start summing colors, each point takes the color of its transform
+     * @param ifs system whose transform colors are used
+     */
+    public void setColors(IFS ifs) {
+        int[] palette = new int[ifs.size()];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = ifs.transform(i).color.getRGB();
+        }
+        setColors(palette);
+    }
+
+    /**
+     * Start summing colors, each point takes the color of its transform
+     * @param palette RGB color for each transform index
+     */
+    public void setColors(int[] palette) {
+        this.palette = palette;
+        if (red == null) {
+            red = new long[counts.length];
+            green = new long[counts.length];
+            blue = new long[counts.length];
+            hues = new long[counts.length];
+        }
+    }
+
+    /**
+     * Count a point, points outside the region are ignored
+     * @param x x coordinate of the point
+     * @param y y coordinate of the point
+     */
+    public void add(double x, double y) {
+        if (x > xmin && x < xmax && y > ymin && y < ymax) {
+            int i = (int)((x - xmin) * dxpp);
+            int j = (int)((y - ymin) * dypp);
+            counts[j * width + i]++;
+        }
+    }
+
+    /**
+     * Count a point and, if colors are being summed, add its color
+     * @param x x coordinate of the point
+     * @param y y coordinate of the point
+     * @param transform index of the transform that produced the point, -1 for none
+     */
+    public void add(double x, double y, int transform) {
+        if (x > xmin && x < xmax && y > ymin && y < ymax) {
+            int i = (int)((x - xmin) * dxpp);
+            int j = (int)((y - ymin) * dypp);
+            int k = j * width + i;
+            counts[k]++;
+            if (palette != null && transform >= 0) {
+                int rgb = palette[transform];
+                red[k] += (rgb >> 16) & 0xff;
+                green[k] += (rgb >> 8) & 0xff;
+                blue[k] += rgb & 0xff;
+                hues[k]++;
+            }
+        }
+    }
+
+    /**
+     * Index of the pixel holding a point
+     * @return row by row index, -1 if outside the region
+     */
+    int pixel(double x, double y) {
+        if (x > xmin && x < xmax && y > ymin && y < ymax) {
+            int i = (int)((x - xmin) * dxpp);
+            int j = (int)((y - ymin) * dypp);
+            return j * width + i;
+        }
+        return -1;
+    }
+
+    /**
+     * Counts every point streamed from an evaluator
+     * @see PointSink
+     */
+    public void accept(int iteration, int transform, double x, double y) {
+        add(x, y, transform);
+    }
+
+    /**
+     * @return <code> true </code>, histograms are split into copies
+     * @see PointSink
+     */
+    public boolean canFork() {
+        return true;
+    }
+
+    /**
+     * @return an empty copy for another thread to count into
+     * @see PointSink
+     */
+    public PointSink fork() {
+        return emptyCopy();
+    }
+
+    /**
+     * Merge a part made by <code> fork </code> back in
+     * @see PointSink
+     */
+    public void join(PointSink part) {
+        merge((Histogram) part);
+    }
+
+    /**
+     * Add the counts of another histogram into this one
+     * @param other a histogram of the same region and size
+     */
+    public void merge(Histogram other) {
+        if (other.width != width || other.height != height
+            || other.xmin != xmin || other.xmax != xmax
+            || other.ymin != ymin || other.ymax != ymax) {
+            throw new RuntimeException("Histograms must cover the same region to merge");
+        }
+        for (int k = 0; k < counts.length; k++) {
+            counts[k] += other.counts[k];
+        }
+        if (other.red != null) {
+            if (red == null) {
+                setColors(other.palette);
+            }
+            for (int k = 0; k < counts.length; k++) {
+                red[k] += other.red[k];
+                green[k] += other.green[k];
+                blue[k] += other.blue[k];
+                hues[k] += other.hues[k];
+            }
+        }
+    }
+
+    /**
+     * Retrieve the count of a pixel
+     * @param i column of the pixel
+     * @param j row of the pixel
+     */
+    public long get(int i, int j) {
+        return counts[j * width + i];
+    }
+
+    /**
+     * @return the largest count of any pixel
+     */
+    public long max() {
+        long max = 0;
+        for (long c : counts) {
+            max = Math.max(max, c);
+        }
+        return max;
+    }
+
+    /**
+     * @return number of points counted over all pixels
+     */
+    public long total() {
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        return total;
+    }
+}
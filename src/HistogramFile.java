@@ -0,0 +1,471 @@
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Vector;
+
+/**
+ * A <code> Histogram </code> kept in a memory mapped file together with
+ * enough state to continue the render that produced it. Besides the counts
+ * the file holds the seed, the number of iterations per starting point,
+ * the burn-in, how many starting points are already included, a
+ * fingerprint of the system and the color of every transform. Since the parallel evaluator
+ * derives the random numbers of every starting point from the seed alone,
+ * this is all that is needed to resume after a crash or to extend a
+ * finished render with more points, in the same colors.
+ * <p>
+ * Counts are added in batches. The file holds two slots of counts and
+ * the header names the current one. Each batch is a checkpoint: the current
+ * counts plus the batch are written into the other slot, flushed to disk,
+ * and only then does the header switch slots and record the new number of
+ * starting points done, in one small write. A crash at any point leaves
+ * the last checkpoint readable, at the cost of a file twice the size.
+ * <pre>
+ * offset  contents
+ *      0  magic "JIFSHIST"
+ *      8  int version, int width, int height, int colored
+ *     24  double xmin, xmax, ymin, ymax
+ *     56  long seed, int iterations, int current slot
+ *     72  long pointsDone
+ *     80  long fingerprint of the system
+ *     88  int palette size, int burn-in
+ *    128  int palette[palette size], padded to 8 bytes
+ *         slot 0: long counts[width * height], then if colored the red, green
+ *                 and blue sums and the colored hits, each width * height longs
+ *         slot 1: the same
+ * </pre>
+ * @author J. Marcus Hughes
+ * @see ParallelIFSEvaluator
+ */
+public class HistogramFile implements Closeable {
+    static final long MAGIC = 0x4a49465348495354L; // "JIFSHIST"
+    static final int VERSION = 3;
+    static final int HEADER_BYTES = 128;
+    int width;   // width in pixels
+    int height;  // height in pixels
+    double xmin; // least allowed x value
+    double xmax; // most allowed x value
+    double ymin; // least allowed y value
+    double ymax; // most allowed y value
+    boolean colored;  // whether color sums are stored
+    long seed;        // seed of the render
+    int iterations;   // iterations per starting point
+    int burnIn;       // unreported steps before each starting point
+    long pointsDone;  // starting points included in the counts
+    long fingerprint; // of the system rendered, see fingerprint
+    int[] palette;    // RGB color per transform index, null if not colored
+    int current;      // slot holding the last checkpoint, 0 or 1
+    private FileChannel channel;
+    private MappedByteBuffer header;
+    private MappedByteBuffer[][] regions; // per slot: counts, then red, green, blue, hues
+    private LongBuffer[][] arrays;        // long views of regions
+
+    /**
+     * Map the header of a file
+     * @param create whether to start a new, empty file in place of any old one,
+     *               otherwise the file must exist and hold at least a header
+     */
+    private HistogramFile(Path file, boolean create) {
+        try {
+            this.channel = create
+                ? FileChannel.open(file, StandardOpenOption.CREATE,
+                                   StandardOpenOption.TRUNCATE_EXISTING,
+                                   StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE)
+                : FileChannel.open(file, StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open " + file, e);
+        }
+        try {
+            if (!create && channel.size() < HEADER_BYTES) {
+                channel.close();
+                throw new RuntimeException(file + " is too short to be a histogram file");
+            }
+            this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            this.header.order(ByteOrder.LITTLE_ENDIAN);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not map " + file, e);
+        }
+    }
+
+    /**
+     * Start a new render in a file, replacing anything already there
+     * @param file where to keep the histogram
+     * @param layout empty histogram giving the region, size and, if it
+     *        has them, the transform colors
+     * @param ifs the system rendered
+     * @param seed seed of the evaluator
+     * @param iterations iterations per starting point of the evaluator
+     * @param burnIn burn-in of the evaluator
+     */
+    public static HistogramFile create(Path file, Histogram layout, IFS ifs,
+                                       long seed, int iterations, int burnIn) {
+        HistogramFile h = new HistogramFile(file, true);
+        h.width = layout.width;
+        h.height = layout.height;
+        h.xmin = layout.xmin;
+        h.xmax = layout.xmax;
+        h.ymin = layout.ymin;
+        h.ymax = layout.ymax;
+        h.colored = layout.red != null;
+        h.palette = h.colored ? layout.palette.clone() : null;
+        h.seed = seed;
+        h.iterations = iterations;
+        h.burnIn = burnIn;
+        h.fingerprint = fingerprint(ifs);
+        h.pointsDone = 0;
+        h.current = 0;
+        h.writeHeader();
+        h.mapArrays();
+        h.flush();
+        return h;
+    }
+
+    /**
+     * Start a new render in a file for an evaluator
+     * @param file where to keep the histogram
+     * @param layout empty histogram giving the region, size and, if it
+     *        has them, the transform colors
+     * @param evaluator supplies the system, seed, iterations and burn-in
+     */
+    public static HistogramFile create(Path file, Histogram layout, ParallelIFSEvaluator evaluator) {
+        return create(file, layout, evaluator.ifs, evaluator.seed,
+                      evaluator.iterations, evaluator.burnIn);
+    }
+
+    /**
+     * Open a render saved in a file, at its last checkpoint. The file is
+     * never created, a missing one fails with a
+     * <code> NoSuchFileException </code> as the cause.
+     * @param file a file made by <code> create </code>
+     */
+    public static HistogramFile open(Path file) {
+        HistogramFile h = new HistogramFile(file, false);
+        MappedByteBuffer b = h.header;
+        if (b.getLong(0) != MAGIC || b.getInt(8) != VERSION) {
+            try {
+                h.close();
+            } catch (IOException e) {
+                // already failing, the message below says why
+            }
+            throw new RuntimeException(file + " is not a histogram file of version " + VERSION);
+        }
+        h.width = b.getInt(12);
+        h.height = b.getInt(16);
+        h.colored = b.getInt(20) != 0;
+        h.xmin = b.getDouble(24);
+        h.xmax = b.getDouble(32);
+        h.ymin = b.getDouble(40);
+        h.ymax = b.getDouble(48);
+        h.seed = b.getLong(56);
+        h.iterations = b.getInt(64);
+        h.current = b.getInt(68);
+        h.pointsDone = b.getLong(72);
+        h.fingerprint = b.getLong(80);
+        int colors = b.getInt(88);
+        h.burnIn = b.getInt(92);
+        if (h.colored) {
+            h.palette = new int[colors];
+            try {
+                MappedByteBuffer p = h.channel.map(FileChannel.MapMode.READ_ONLY,
+                                                   HEADER_BYTES, 4L * colors);
+                p.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(h.palette);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not read the palette of " + file, e);
+            }
+        }
+        h.mapArrays();
+        return h;
+    }
+
+    /**
+     * A hash of the transforms and weights of a system, so that a render
+     * is not resumed with another one. Colors are not included.
+     * @param ifs the system
+     */
+    static long fingerprint(IFS ifs) {
+        long hash = ifs.size();
+        for (int i = 0; i < ifs.size(); i++) {
+            Transform t = ifs.transform(i);
+            if (t instanceof AffineTransform) {
+                AffineTransform a = (AffineTransform) t;
+                for (double v : new double[]{a.a, a.b, a.c, a.d, a.e, a.f}) {
+                    hash = 31 * hash + Double.doubleToLongBits(v);
+                }
+            } else {
+                hash = 31 * hash + t.toString().hashCode();
+            }
+            hash = 31 * hash + Double.doubleToLongBits(ifs.probability(i));
+        }
+        return hash;
+    }
+
+    /**
+     * Write the header fields, the palette and the commit fields
+     */
+    private void writeHeader() {
+        header.putLong(0, MAGIC);
+        header.putInt(8, VERSION);
+        header.putInt(12, width);
+        header.putInt(16, height);
+        header.putInt(20, colored ? 1 : 0);
+        header.putDouble(24, xmin);
+        header.putDouble(32, xmax);
+        header.putDouble(40, ymin);
+        header.putDouble(48, ymax);
+        header.putLong(56, seed);
+        header.putInt(64, iterations);
+        header.putLong(80, fingerprint);
+        header.putInt(88, colored ? palette.length : 0);
+        header.putInt(92, burnIn);
+        if (colored) {
+            try {
+                MappedByteBuffer p = channel.map(FileChannel.MapMode.READ_WRITE,
+                                                 HEADER_BYTES, 4L * palette.length);
+                p.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().put(palette);
+                p.force();
+            } catch (IOException e) {
+                throw new RuntimeException("Could not write the palette", e);
+            }
+        }
+        commit();
+    }
+
+    /**
+     * Write the current slot and points done, next to each other so they
+     * reach the disk together
+     */
+    private void commit() {
+        header.putInt(68, current);
+        header.putLong(72, pointsDone);
+        header.force();
+    }
+
+    /**
+     * Map the count arrays of both slots, after the header and palette
+     */
+    private void mapArrays() {
+        long n = (long) width * height;
+        if (8 * n > Integer.MAX_VALUE) {
+            throw new RuntimeException("Histogram too large to map, use TiledImage");
+        }
+        int count = colored ? 5 : 1;
+        long start = HEADER_BYTES + ((4L * (colored ? palette.length : 0) + 7) & ~7L);
+        regions = new MappedByteBuffer[2][count];
+        arrays = new LongBuffer[2][count];
+        try {
+            for (int slot = 0; slot < 2; slot++) {
+                for (int a = 0; a < count; a++) {
+                    regions[slot][a] = channel.map(FileChannel.MapMode.READ_WRITE,
+                                                   start + (slot * count + a) * 8 * n, 8 * n);
+                    regions[slot][a].order(ByteOrder.LITTLE_ENDIAN);
+                    arrays[slot][a] = regions[slot][a].asLongBuffer();
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not map histogram", e);
+        }
+    }
+
+    /**
+     * Whether a histogram covers the same region and size as the file
+     */
+    boolean sameLayout(Histogram h) {
+        return h.width == width && h.height == height
+            && h.xmin == xmin && h.xmax == xmax
+            && h.ymin == ymin && h.ymax == ymax;
+    }
+
+    /**
+     * Check that the file continues a render of a system over a region
+     * @param ifs the system to be rendered
+     * @param layout histogram giving the region and size wanted
+     */
+    public void check(IFS ifs, Histogram layout) {
+        if (fingerprint(ifs) != fingerprint) {
+            throw new RuntimeException("File was rendered from a different system");
+        }
+        if (!sameLayout(layout)) {
+            throw new RuntimeException("File was rendered over a different region or size");
+        }
+    }
+
+    /**
+     * @return an empty in-memory histogram over the same region and size,
+     *         summing colors in the saved palette if the file does
+     */
+    public Histogram emptyHistogram() {
+        Histogram h = new Histogram(width, height, xmin, xmax, ymin, ymax);
+        if (colored) {
+            h.setColors(palette.clone());
+        }
+        return h;
+    }
+
+    /**
+     * Add a batch of counts and checkpoint
+     * @param h counts for the starting points after <code> pointsDone </code>
+     * @param pointsDone starting points included once <code> h </code> is added
+     */
+    public void add(Histogram h, long pointsDone) {
+        if (!sameLayout(h)) {
+            throw new RuntimeException("Histogram must cover the same region as the file");
+        }
+        int next = 1 - current;
+        add(arrays[current][0], h.counts, arrays[next][0]);
+        if (colored) {
+            long[] none = new long[h.counts.length];
+            add(arrays[current][1], h.red != null ? h.red : none, arrays[next][1]);
+            add(arrays[current][2], h.green != null ? h.green : none, arrays[next][2]);
+            add(arrays[current][3], h.blue != null ? h.blue : none, arrays[next][3]);
+            add(arrays[current][4], h.hues != null ? h.hues : none, arrays[next][4]);
+        }
+        for (MappedByteBuffer r : regions[next]) {
+            r.force();
+        }
+        this.current = next;
+        this.pointsDone = pointsDone;
+        commit();
+    }
+
+    /**
+     * Element-wise sum of a mapped array and an array into another mapped array
+     */
+    private static void add(LongBuffer from, long[] values, LongBuffer into) {
+        for (int k = 0; k < values.length; k++) {
+            into.put(k, from.get(k) + values[k]);
+        }
+    }
+
+    /**
+     * Copy the counts of the last checkpoint into memory, e.g. to plot on
+     * an <code> Image </code>
+     * @return histogram with the counts, and color sums and palette if stored
+     */
+    public Histogram read() {
+        Histogram h = emptyHistogram();
+        arrays[current][0].get(0, h.counts);
+        if (colored) {
+            arrays[current][1].get(0, h.red);
+            arrays[current][2].get(0, h.green);
+            arrays[current][3].get(0, h.blue);
+            arrays[current][4].get(0, h.hues);
+        }
+        return h;
+    }
+
+    /**
+     * Write all mapped counts to disk
+     */
+    public void flush() {
+        for (MappedByteBuffer[] slot : regions) {
+            for (MappedByteBuffer r : slot) {
+                r.force();
+            }
+        }
+    }
+
+    /**
+     * Release the file
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * testing method, renders the Sierpinski triangle in two sessions and
+     * checks the result is the same as a single render, colors included
+     */
+    public static void main(String args[]) throws IOException {
+        Vector<Transform> transforms = new Vector<Transform>();
+        Matrix shrink = new Matrix(0.5, 0.0, 0.0, 0.5);
+        transforms.add(new AffineTransform(shrink, new Matrix(0.0, 0.0)));
+        transforms.add(new AffineTransform(shrink, new Matrix(0.5, 0.0)));
+        transforms.add(new AffineTransform(shrink, new Matrix(0.0, 0.5)));
+        IFS system = new IFS(transforms);
+        Path path = new File("sierpinski.hist").toPath();
+
+        ParallelIFSEvaluator first = new ParallelIFSEvaluator(system, 50000, 100, 42L);
+        first.setBurnIn(20);
+        Histogram layout = new Histogram(500, 500, 0.0, 1.0, 0.0, 1.0);
+        layout.setColors(system);
+        try (HistogramFile file = HistogramFile.create(path, layout, first)) {
+            first.run(file, layout, 10000);
+        }
+
+        // the transforms again, as a new session would build them, in new colors
+        Vector<Transform> rebuilt = new Vector<Transform>();
+        rebuilt.add(new AffineTransform(shrink, new Matrix(0.0, 0.0)));
+        rebuilt.add(new AffineTransform(shrink, new Matrix(0.5, 0.0)));
+        rebuilt.add(new AffineTransform(shrink, new Matrix(0.0, 0.5)));
+        IFS again = new IFS(rebuilt);
+        Histogram resumed;
+        try (HistogramFile file = HistogramFile.open(path)) {
+            System.out.printf("resuming after %d points%n", file.pointsDone);
+            assert file.pointsDone == 50000 : "points done not restored";
+            assert Arrays.equals(file.palette, layout.palette) : "palette not restored";
+            ParallelIFSEvaluator.resume(again, 100000, file).run(file, layout, 10000);
+            resumed = file.read();
+            Image img = new Image(500, 500, 0.0, 1.0, 0.0, 1.0);
+            img.plot(resumed);
+            img.save("sierpinski.jpg");
+        }
+
+        Histogram whole = layout.emptyCopy();
+        ParallelIFSEvaluator single = new ParallelIFSEvaluator(system, 100000, 100, 42L);
+        single.setBurnIn(20);
+        single.run(whole);
+        assert Arrays.equals(whole.counts, resumed.counts) : "resumed counts differ";
+        assert Arrays.equals(whole.red, resumed.red) : "resumed colors differ";
+        System.out.println("resumed render matches a single render");
+
+        // a crash while adding leaves a half written spare slot, the header still names the last checkpoint
+        try (HistogramFile file = HistogramFile.open(path)) {
+            LongBuffer spare = file.arrays[1 - file.current][0];
+            for (int k = 0; k < spare.capacity() / 2; k++) {
+                spare.put(k, -1L);
+            }
+            file.flush();
+        }
+        try (HistogramFile file = HistogramFile.open(path)) {
+            assert file.pointsDone == 100000 : "checkpoint lost";
+            assert Arrays.equals(whole.counts, file.read().counts) : "half written slot was read";
+        }
+        System.out.println("half written slot ignored");
+
+        // opening a missing file fails and leaves no file behind
+        Path missing = new File("missing.hist").toPath();
+        Files.deleteIfExists(missing);
+        try {
+            HistogramFile.open(missing).close();
+            assert false : "opened a missing file";
+        } catch (RuntimeException e) {
+            assert e.getCause() instanceof NoSuchFileException : "failed with " + e;
+            assert !missing.toFile().exists() : "open created the file";
+            System.out.println("rejected: " + e.getMessage());
+        }
+
+        Vector<Transform> other = new Vector<Transform>(rebuilt);
+        other.add(new AffineTransform(shrink, new Matrix(0.5, 0.5)));
+        try (HistogramFile file = HistogramFile.open(path)) {
+            ParallelIFSEvaluator.resume(new IFS(other), 200000, file).run(file, layout, 10000);
+            assert false : "resumed a render of a different system";
+        } catch (RuntimeException e) {
+            System.out.println("rejected: " + e.getMessage());
+        }
+        try (HistogramFile file = HistogramFile.open(path)) {
+            ParallelIFSEvaluator noBurnIn = new ParallelIFSEvaluator(again, 200000, 100, 42L);
+            noBurnIn.run(file, layout, 10000);
+            assert false : "resumed a render with a different burn-in";
+        } catch (RuntimeException e) {
+            System.out.println("rejected: " + e.getMessage());
+        }
+    }
+}
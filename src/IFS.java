@@ -1,4 +1,5 @@
 import java.util.Vector;
+import java.util.Arrays;
 import static java.lang.Math.random;
 
 /**
@@ -9,48 +10,97 @@ import static java.lang.Math.random;
  * An iterated function system can have multiple portions. Technically,
  * all of the transformations can be evaluated, but a probabalistic 
  * approach is possible. Thus, each transformation has an associated
- * likelihood.
+ * likelihood. The transforms and likelihoods are read with
+ * <code> transform </code> and <code> probability </code> and only change
+ * through <code> addTransform </code>, which keeps the sampler in step
+ * with them.
  * @author J. Marcus Hughes
  */
 public class IFS {
-    Vector<Transform> transforms;
-    Vector<Double> probabilities;
+    private Vector<Transform> transforms;
+    private Vector<Double> probabilities;
+    private double[] weights; // primitive copy of probabilities
+    private int size;         // number of weights in use
+    private AliasTable table; // constant time sampler over weights, null until next drawn from
 
     /** 
      * Returns IFS with all transforms having equal weight 
-     * @param transforms a list of equally weighted transforms
+     * @param transforms a list of equally weighted transforms, copied
      */
     IFS(Vector<Transform> transforms){
         assert transforms.size() > 0 : "transforms must have size > 0";
-        this.transforms = transforms;
+        this.transforms = new Vector<Transform>(transforms);
         this.probabilities = new Vector<Double>();
         double weight = 1.0/this.transforms.size();
         for (Transform t : this.transforms){this.probabilities.add(weight);}
         assert checkProbability() : "probability list must sum to 1.0";
+        buildTable();
     }
     
     /** 
      * Constructor given a list of transforms and probabilities 
-     * @param transforms a vector of transform type objects
+     * @param transforms a vector of transform type objects, copied
      * @param probabilities probability of selecting transform, must sum to 1.0
      */
     IFS(Vector<Transform> transforms, Vector<Double> probabilities){
         if (transforms.size() != probabilities.size()) {
             throw new RuntimeException("Transforms and probabilities must be the same size");
         }
-        this.transforms = transforms;
-        this.probabilities = probabilities;
+        this.transforms = new Vector<Transform>(transforms);
+        this.probabilities = new Vector<Double>(probabilities);
         assert checkProbability() : "probability list must sum to 1.0";
+        buildTable();
     }
 
     /**
-     * copy constructor for IFS
+     * copy constructor for IFS, transforms added to either system later
+     * do not appear in the other
      * @param other an IFS to copy
      */
     IFS(IFS other) {
-        this.transforms = other.transforms;
-        this.probabilities = other.probabilities;
+        this.transforms = new Vector<Transform>(other.transforms);
+        this.probabilities = new Vector<Double>(other.probabilities);
         assert checkProbability() : "probability list must sum to 1.0";
+        this.weights = other.weights.clone();
+        this.size = other.size;
+        this.table = other.table;
+    }
+
+    /**
+     * copy the probabilities into a primitive array, the sampler is built
+     * when it is first drawn from
+     */
+    private void buildTable() {
+        this.size = this.probabilities.size();
+        this.weights = new double[Math.max(4, this.size)];
+        for (int i = 0; i < this.size; i++) {
+            this.weights[i] = this.probabilities.get(i);
+        }
+        this.table = null;
+    }
+
+    /**
+     * @return number of transforms in the system
+     */
+    public int size() {
+        return this.transforms.size();
+    }
+
+    /**
+     * @param i position of the transform, from 0 to <code> size() </code>
+     * @return the transform at that position
+     */
+    public Transform transform(int i) {
+        return this.transforms.get(i);
+    }
+
+    /**
+     * Likelihood of selecting a transform
+     * @param i position of the transform, from 0 to <code> size() </code>
+     * @return its probability
+     */
+    public double probability(int i) {
+        return this.probabilities.get(i);
     }
 
     /** determine if the probability list is sums to 1.0
@@ -63,7 +113,8 @@ public class IFS {
         return total == 1.0;
     } 
     /** 
-     * Append the transform to the set of transforms 
+     * Append the transform to the set of transforms. The sampler is rebuilt
+     * on the next draw, so adding many transforms in a row stays linear.
      * @param t transform to be appended
      * @param p probability of selecting that transform
      */
@@ -71,22 +122,52 @@ public class IFS {
         this.transforms.add(t);
         this.probabilities.add(p);
         assert checkProbability() : "probability list must sum to 1.0";
+        if (this.size == this.weights.length) {
+            this.weights = Arrays.copyOf(this.weights, 2 * this.size);
+        }
+        this.weights[this.size++] = p;
+        this.table = null;
     }
 
     /**
      * Select a transformation at random using the probability weighting
      */
     public Transform chooseTransform() {
-        double n = Math.random();
-        double runningTotal = 0.0;
-        int i;
-        for (i = 0; i < this.probabilities.size(); i++) {
-            runningTotal += this.probabilities.get(i);
-            if (n <= runningTotal) {
-                break;
-            }
+        return this.transforms.get(chooseIndex());
+    }
+
+    /**
+     * Select the index of a transformation at random using the probability weighting
+     * @return position of the chosen transform, as passed to <code> transform </code>
+     */
+    public int chooseIndex() {
+        return chooseIndex(Math.random());
+    }
+
+    /**
+     * Select the index of a transformation using the probability weighting
+     * and a caller supplied random number, so any generator can be used.
+     * Takes constant time however many transforms there are.
+     * @param n uniformly distributed number in [0, 1)
+     * @return position of the chosen transform, as passed to <code> transform </code>
+     */
+    public int chooseIndex(double n) {
+        AliasTable t = this.table;
+        if (t == null) {
+            t = new AliasTable(this.weights, this.size);
+            this.table = t;
         }
-        return this.transforms.get(i);
+        return t.choose(n);
+    }
+
+    /**
+     * Flatten the system into primitive arrays for fast evaluation.
+     * Later changes to this <code> IFS </code> do not affect the result.
+     * @return an immutable copy of the system
+     */
+    public CompiledIFS compile() {
+        return new CompiledIFS(this.transforms.toArray(new Transform[0]),
+                               Arrays.copyOf(this.weights, this.size));
     }
 
     /**
@@ -129,7 +210,20 @@ public class IFS {
             p = t.transform(p);
         }
 
-        
+        // a copy grows on its own and its sampler follows the new weights
+        IFS copy = new IFS(system);
+        copy.addTransform(new AffineTransform(shrink, new Matrix(0.5, 0.5)), 0.0);
+        assert system.size() == 3 : "copy shares transforms with the original";
+        assert copy.size() == 4 : "transform not added to the copy";
+
+        // the caller's vector is copied, changing it afterwards leaves the system alone
+        transforms.add(new AffineTransform(shrink, new Matrix(0.5, 0.5)));
+        assert system.size() == 3 : "system shares the caller's vector";
+        long[] hits = new long[4];
+        for (int k = 0; k < 30000; k++) {
+            hits[copy.chooseIndex((k + 0.5) / 30000)]++;
+        }
+        assert hits[3] == 0 && hits[0] == 10000 && hits[1] == 10000 : "copy draws " + Arrays.toString(hits);
     }
 
 }
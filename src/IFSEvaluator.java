@@ -1,6 +1,29 @@
 /** 
  * An abstract representation of an iterated function system <code> IFS </code> evaluator.
+ * An evaluator is an engine that generates points of the system and pushes
+ * every one into a <code> PointSink </code>; what happens to the points, 
+ * counting, drawing, estimating a dimension or writing to disk, is up to
+ * the sink. Engines (serial, parallel, deterministic, batched) can then be
+ * swapped under the same rendering and analysis stages without copying
+ * point data between them.
  * @author J. Marcus Hughes
+ * @see PointSink
  */
 abstract class IFSEvaluator {
+    IFS ifs;
+
+    /**
+     * Generate the points of the system into a sink. Stops early once the
+     * sink reports it is done.
+     * @param sink where every point is sent
+     */
+    abstract public void evaluate(PointSink sink);
+
+    /**
+     * Generate the points of the system into several sinks at once
+     * @param sinks where every point is sent, in order
+     */
+    public void evaluate(PointSink... sinks) {
+        evaluate(SinkChain.of(sinks));
+    }
 }
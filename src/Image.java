@@ -1,6 +1,4 @@
 import java.awt.image.*;
-import javax.imageio.*;
-import java.awt.Color;
 import java.io.*;
 
 /**
@@ -8,18 +6,23 @@ import java.io.*;
  * Given a region in the real plane [a,b] * [c,d] and a width in pixels
  * and height in pixels provides mapping support from the number value
  * to the image.
+ * Points are not drawn one at a time, instead they are counted in a 
+ * <code> Histogram </code> and the counts are tone mapped to pixel values
+ * in one pass when the image is saved. Brightness is the log of the
+ * density with a gamma correction, so how often a region is visited
+ * shows in the output.
  * @author J. Marcus Hughes
  */
 
-public class Image {
+public class Image implements PointSink {
     double xmin; // least allowed x value
     double xmax; // most allowed x value
     double ymin; // least allowed y value
     double ymax; // most allowed y value
     int width;   // width of image in pixels
     int height;  // height of image in pixels
-    private double dxpp; //amount of x movement per pixel
-    private double dypp; //amount of y movement per pixel
+    double gamma; // gamma correction applied to the log density
+    Histogram density; // points counted so far
     BufferedImage img;
 
     /**
@@ -44,23 +47,28 @@ public class Image {
         
         this.width = width;
         this.height = height;
+        this.gamma = 2.2;
                
         this.img = new BufferedImage(width, height,
                                      BufferedImage.TYPE_INT_RGB);
+        this.density = new Histogram(width, height, xmin, xmax, ymin, ymax);
+    }
 
-        // Determine how much "real" value should be mapped per pixel
-        this.dxpp = width / (xmax - xmin);
-        this.dypp = height / (ymax - ymin);
+    /**
+     * Color points by the transform that produced them instead of white
+     * @param ifs system whose transform colors are used
+     */
+    public void setColors(IFS ifs) {
+        density.setColors(ifs);
     }
 
     /**
-     * Maps (x,y) in real values to pixel values
+     * Change the gamma correction, larger values brighten sparse regions
+     * @param gamma exponent applied as brightness^(1/gamma)
      */
-    private int[] transform(double x, double y) {
-        assert x > xmin && x < xmax && y > ymin && y < ymax : "(x,y) not in range";
-        double dx = x - xmin;
-        double dy = y - ymin;
-        return new int[]{(int)(dx * dxpp), (int)(dy * dypp)};
+    public void setGamma(double gamma) {
+        assert gamma > 0 : "gamma must be positive";
+        this.gamma = gamma;
     }
 
     /**
@@ -68,31 +76,157 @@ public class Image {
      * @param p point as column vector
      */
     public void plot(Matrix p) {
-        Color c = new Color(255,255,255); // all regions are white
-        int rgb = c.getRGB();
-
-        double x = p.get(1,1);
-        double y = p.get(2,1);
-        if (x > xmin && x < xmax && y > ymin && y < ymax) {
-            // if not in plotting range do nothing
-            int[] ij = transform(x, y);
-            img.setRGB(ij[0], ij[1], rgb);
+        density.add(p.get(1,1), p.get(2,1));
+    }
+
+    /**
+     * Given a point as coordinates, plot it. 
+     * If not in plotting range does nothing.
+     * @param x x coordinate of the point
+     * @param y y coordinate of the point
+     */
+    public void plot(double x, double y) {
+        density.add(x, y);
+    }
+
+    /**
+     * Plot every point counted in a histogram. Counts are added pixel by
+     * pixel, so the histogram must have been made over the same region and
+     * with the same size as the image, e.g. with the same constructor
+     * arguments.
+     * @param h histogram of the same region and size as the image
+     */
+    public void plot(Histogram h) {
+        if (h.width != width || h.height != height
+            || h.xmin != xmin || h.xmax != xmax || h.ymin != ymin || h.ymax != ymax) {
+            throw new RuntimeException(String.format(
+                "Histogram of %dx%d over [%g, %g]x[%g, %g] does not match image of %dx%d over [%g, %g]x[%g, %g]",
+                h.width, h.height, h.xmin, h.xmax, h.ymin, h.ymax,
+                width, height, xmin, xmax, ymin, ymax));
+        }
+        density.merge(h);
+    }
+
+    /**
+     * Plots every point streamed from an evaluator
+     * @see PointSink
+     */
+    public void accept(int iteration, int transform, double x, double y) {
+        density.add(x, y, transform);
+    }
+
+    /**
+     * @return <code> true </code>, the density is split like any histogram
+     * @see PointSink
+     */
+    public boolean canFork() {
+        return true;
+    }
+
+    /**
+     * @return an empty copy of the density for another thread to count into
+     * @see PointSink
+     */
+    public PointSink fork() {
+        return density.fork();
+    }
+
+    /**
+     * Merge a part made by <code> fork </code> into the density
+     * @see PointSink
+     */
+    public void join(PointSink part) {
+        density.join(part);
+    }
+
+    /**
+     * Tone map the density into the pixels of the image in one pass 
+     * over the raster
+     */
+    void render() {
+        int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        long[] counts = density.counts;
+        double logMax = Math.log1p(density.max());
+        for (int k = 0; k < counts.length; k++) {
+            long c = counts[k];
+            if (c == 0) {
+                pixels[k] = 0;
+                continue;
+            }
+            double v = brightness(c, logMax, gamma);
+            if (density.red == null || density.hues[k] == 0) {
+                pixels[k] = shade(v, 255, 255, 255);
+            } else {
+                // average over the hits with a color, uncolored ones only add brightness
+                long h = density.hues[k];
+                pixels[k] = shade(v,
+                                  (int)(density.red[k] / h),
+                                  (int)(density.green[k] / h),
+                                  (int)(density.blue[k] / h));
+            }
         }
     }
 
     /**
-     * Output image to file
+     * Log scaled brightness of a pixel
+     * @param count number of points in the pixel
+     * @param logMax log(1 + largest count in the image)
+     * @param gamma gamma correction
+     * @return brightness in [0, 1]
+     */
+    static double brightness(double count, double logMax, double gamma) {
+        if (count <= 0 || logMax <= 0) {
+            return 0.0;
+        }
+        return Math.pow(Math.log1p(count) / logMax, 1.0 / gamma);
+    }
+
+    /**
+     * Scale a color by a brightness
+     * @param v brightness in [0, 1]
+     * @param r red channel of the full brightness color
+     * @param g green channel of the full brightness color
+     * @param b blue channel of the full brightness color
+     * @return packed RGB value
+     */
+    static int shade(double v, int r, int g, int b) {
+        return ((int)(v * r) << 16) | ((int)(v * g) << 8) | (int)(v * b);
+    }
+
+    /**
+     * Output image to file, in the format given by its extension:
+     * .png, .ppm, .pgm for the 16 bit density, otherwise JPEG
      * @param filename where to save image 
+     * @see ImageEncoder
      */
     public void save(String filename) {
+        save(filename, ImageEncoder.forFile(filename));
+    }
+
+    /**
+     * Output image to file with a chosen encoder
+     * @param filename where to save image
+     * @param encoder how to write it
+     */
+    public void save(String filename, ImageEncoder encoder) {
+        render();
         try {
-            File outputfile = new File(filename);
-            ImageIO.write(img, "jpg", outputfile);
-        }catch(IOException e) {
-            System.out.println("FAILED!");   
+            encoder.encode(this, new File(filename).toPath());
+        } catch (IOException e) {
+            throw new RuntimeException("Could not save " + filename, e);
         }
     }
 
+    /**
+     * Output the image as last rendered to file, without rendering again,
+     * so the encoding can happen on another thread than the rendering
+     * @param filename where to save image, the extension picks the format
+     * @throws IOException if the file cannot be written
+     */
+    void write(String filename) throws IOException {
+        ImageEncoder.forFile(filename).encode(this, new File(filename).toPath());
+    }
+
     /**
      * testing method
      */
@@ -100,5 +234,14 @@ public class Image {
         Image img = new Image(500, 500, -1.0, 1.0, -1.0, 1.0);
         img.plot(new Matrix(0.0, 0.0));
         img.save("image.jpg");
+
+        // a starting point without a color must not darken a red pixel
+        Image colored = new Image(2, 2, 0.0, 1.0, 0.0, 1.0);
+        colored.density.setColors(new int[]{0xff0000});
+        colored.accept(1, 0, 0.25, 0.25);
+        colored.accept(0, -1, 0.25, 0.25);
+        colored.render();
+        int rgb = colored.img.getRGB(0, 0) & 0xffffff;
+        assert rgb == 0xff0000 : String.format("uncolored hit changed the color to %06x", rgb);
     }
 }
@@ -0,0 +1,323 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Vector;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import javax.imageio.ImageIO;
+
+/**
+ * Writes an <code> Image </code> to a file in some format. The image has
+ * already been tone mapped by <code> Image.render </code>, except for
+ * <code> Pgm16 </code> which writes the density itself.
+ * <ul>
+ * <li> <code> Jpeg </code> through ImageIO, small but lossy, the default
+ * <li> <code> Png </code> written directly, lossless, with a chosen deflate level
+ * <li> <code> Ppm </code> binary PPM (P6), the raster streamed row by row to
+ *      a <code> FileChannel </code>, no compression, the fastest to write
+ * <li> <code> Pgm16 </code> binary 16 bit PGM (P5) of the log density,
+ *      keeping far more levels than the 8 bit images
+ * </ul>
+ * <code> forFile </code> chooses one from the file extension.
+ * @author J. Marcus Hughes
+ * @see Image
+ */
+interface ImageEncoder {
+    /**
+     * Write an image
+     * @param img a rendered image
+     * @param file where to write it
+     * @throws IOException if the file cannot be written
+     */
+    void encode(Image img, Path file) throws IOException;
+
+    /**
+     * The encoder for a file name: .png, .ppm, .pgm, else JPEG
+     * @param filename name of the file to write
+     */
+    static ImageEncoder forFile(String filename) {
+        String name = filename.toLowerCase();
+        if (name.endsWith(".png")) {
+            return new Png(Deflater.DEFAULT_COMPRESSION);
+        } else if (name.endsWith(".ppm")) {
+            return new Ppm();
+        } else if (name.endsWith(".pgm")) {
+            return new Pgm16();
+        }
+        return new Jpeg();
+    }
+
+    /**
+     * @return the packed RGB pixels of an image, row by row
+     */
+    static int[] pixels(Image img) {
+        return ((DataBufferInt) img.img.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * JPEG through ImageIO
+     */
+    static class Jpeg implements ImageEncoder {
+        public void encode(Image img, Path file) throws IOException {
+            if (!ImageIO.write(img.img, "jpg", file.toFile())) {
+                throw new IOException("No JPEG writer available");
+            }
+        }
+    }
+
+    /**
+     * PNG, 8 bit RGB, no row filtering, deflated at a chosen level. The
+     * compressed rows are streamed to the file in IDAT chunks of
+     * <code> CHUNK </code> bytes, so neither the image size nor the heap
+     * limits the output.
+     */
+    static class Png implements ImageEncoder {
+        static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+        static final int CHUNK = 1 << 16; // most bytes of compressed data per IDAT chunk
+        int level; // deflate level, 0 for none to 9 for smallest, -1 default
+
+        /**
+         * @param level deflate level, 0 for fastest to 9 for smallest,
+         *        or <code> Deflater.DEFAULT_COMPRESSION </code>
+         */
+        Png(int level) {
+            assert level >= -1 && level <= 9 : "level must be between -1 and 9";
+            this.level = level;
+        }
+
+        public void encode(Image img, Path file) throws IOException {
+            int[] pixels = pixels(img);
+            ByteBuffer ihdr = ByteBuffer.allocate(13);
+            ihdr.putInt(img.width).putInt(img.height);
+            ihdr.put((byte) 8).put((byte) 2).put((byte) 0).put((byte) 0).put((byte) 0);
+
+            try (OutputStream out = new BufferedOutputStream(
+                     Channels.newOutputStream(open(file)), 1 << 16)) {
+                out.write(SIGNATURE);
+                chunk(out, "IHDR", ihdr.array(), 13);
+                Deflater deflater = new Deflater(level);
+                try (DeflaterOutputStream z = new DeflaterOutputStream(new Idat(out), deflater, CHUNK)) {
+                    byte[] row = new byte[1 + 3 * img.width]; // filter type 0, then RGB
+                    for (int j = 0; j < img.height; j++) {
+                        for (int i = 0; i < img.width; i++) {
+                            int rgb = pixels[j * img.width + i];
+                            row[1 + 3 * i] = (byte)(rgb >> 16);
+                            row[2 + 3 * i] = (byte)(rgb >> 8);
+                            row[3 + 3 * i] = (byte) rgb;
+                        }
+                        z.write(row);
+                    }
+                } finally {
+                    deflater.end();
+                }
+                chunk(out, "IEND", new byte[0], 0);
+            }
+        }
+
+        /**
+         * Collects compressed data and writes it as IDAT chunks of
+         * <code> CHUNK </code> bytes, the last one shorter, when closed
+         * leaving the file open for the chunks after
+         */
+        private static class Idat extends OutputStream {
+            final OutputStream out;
+            final byte[] buffer = new byte[CHUNK];
+            int length; // bytes in the buffer
+
+            Idat(OutputStream out) {
+                this.out = out;
+            }
+
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    int n = Math.min(len, CHUNK - length);
+                    System.arraycopy(b, off, buffer, length, n);
+                    length += n;
+                    off += n;
+                    len -= n;
+                    if (length == CHUNK) {
+                        chunk(out, "IDAT", buffer, length);
+                        length = 0;
+                    }
+                }
+            }
+
+            public void close() throws IOException {
+                if (length > 0) {
+                    chunk(out, "IDAT", buffer, length);
+                    length = 0;
+                }
+            }
+        }
+
+        /**
+         * Write a PNG chunk: length, type, data and CRC of type and data
+         */
+        private static void chunk(OutputStream out, String type, byte[] data, int length)
+            throws IOException {
+            byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+            CRC32 crc = new CRC32();
+            crc.update(name);
+            crc.update(data, 0, length);
+            DataOutputStream d = new DataOutputStream(out);
+            d.writeInt(length);
+            d.write(name);
+            d.write(data, 0, length);
+            d.writeInt((int) crc.getValue());
+        }
+    }
+
+    /**
+     * Binary PPM, the raster converted a row at a time into a direct buffer
+     * and written to the channel
+     */
+    static class Ppm implements ImageEncoder {
+        public void encode(Image img, Path file) throws IOException {
+            int[] pixels = pixels(img);
+            try (FileChannel channel = open(file)) {
+                writeAll(channel, ByteBuffer.wrap(String.format("P6\n%d %d\n255\n", img.width, img.height)
+                                                  .getBytes(StandardCharsets.US_ASCII)));
+                ByteBuffer row = ByteBuffer.allocateDirect(3 * img.width);
+                for (int j = 0; j < img.height; j++) {
+                    row.clear();
+                    for (int i = 0; i < img.width; i++) {
+                        int rgb = pixels[j * img.width + i];
+                        row.put((byte)(rgb >> 16)).put((byte)(rgb >> 8)).put((byte) rgb);
+                    }
+                    row.flip();
+                    writeAll(channel, row);
+                }
+            }
+        }
+    }
+
+    /**
+     * Binary 16 bit PGM of the density, log(1 + count) scaled so the
+     * largest count is 65535, no gamma
+     */
+    static class Pgm16 implements ImageEncoder {
+        public void encode(Image img, Path file) throws IOException {
+            long[] counts = img.density.counts;
+            double scale = 65535 / Math.log1p(Math.max(1, img.density.max()));
+            try (FileChannel channel = open(file)) {
+                writeAll(channel, ByteBuffer.wrap(String.format("P5\n%d %d\n65535\n", img.width, img.height)
+                                                  .getBytes(StandardCharsets.US_ASCII)));
+                ByteBuffer row = ByteBuffer.allocateDirect(2 * img.width).order(ByteOrder.BIG_ENDIAN);
+                for (int j = 0; j < img.height; j++) {
+                    row.clear();
+                    for (int i = 0; i < img.width; i++) {
+                        row.putShort((short) Math.round(Math.log1p(counts[j * img.width + i]) * scale));
+                    }
+                    row.flip();
+                    writeAll(channel, row);
+                }
+            }
+        }
+    }
+
+    /**
+     * Open a file for writing, replacing anything already there
+     */
+    static FileChannel open(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE,
+                                StandardOpenOption.WRITE,
+                                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Write all of a buffer to a channel
+     */
+    static void writeAll(FileChannel channel, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            channel.write(b);
+        }
+    }
+
+    /**
+     * testing main, writes a small colored render in every lossless format
+     * and checks the bytes: the PNG signature, chunk order, header fields
+     * and CRCs, that the PNG reads back to the same pixels, and the sizes
+     * of the PPM and PGM files
+     */
+    static void main(String[] args) throws IOException {
+        Vector<Transform> transforms = new Vector<Transform>();
+        Matrix shrink = new Matrix(0.5, 0.0, 0.0, 0.5);
+        transforms.add(new AffineTransform(shrink, new Matrix(0.0, 0.0)));
+        transforms.add(new AffineTransform(shrink, new Matrix(0.5, 0.0)));
+        transforms.add(new AffineTransform(shrink, new Matrix(0.0, 0.5)));
+        IFS system = new IFS(transforms);
+        Image img = new Image(401, 301, 0.0, 1.0, 0.0, 1.0);
+        img.setColors(system);
+        new RandomIFSEvaluator(system, 1000, 100).stream(img);
+        img.render();
+
+        Path png = new File("encoder.png").toPath();
+        new Png(0).encode(img, png); // stored, so the data spans several chunks
+        ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(png));
+        byte[] signature = new byte[8];
+        b.get(signature);
+        assert Arrays.equals(signature, Png.SIGNATURE) : "PNG signature";
+        String[] expected = {"IHDR", "IDAT", "IEND"};
+        int idats = 0;
+        for (int c = 0; c < expected.length; c++) {
+            String type = expected[c];
+            int length = b.getInt();
+            byte[] name = new byte[4];
+            b.get(name);
+            String found = new String(name, StandardCharsets.US_ASCII);
+            if (found.equals("IDAT") && type.equals("IEND")) {
+                type = "IDAT"; // more image data
+                c--;
+            }
+            assert type.equals(found) : "expected " + type + " chunk, found " + found;
+            if (type.equals("IDAT")) {
+                idats++;
+                assert length <= Png.CHUNK : "IDAT chunk of " + length + " bytes";
+            }
+            CRC32 crc = new CRC32();
+            crc.update(name);
+            crc.update(b.array(), b.position(), length);
+            if (type.equals("IHDR")) {
+                assert length == 13 : "IHDR length";
+                assert b.getInt(b.position()) == img.width && b.getInt(b.position() + 4) == img.height : "IHDR size";
+                assert b.get(b.position() + 8) == 8 && b.get(b.position() + 9) == 2 : "IHDR 8 bit RGB";
+            }
+            b.position(b.position() + length);
+            assert b.getInt() == (int) crc.getValue() : type + " CRC";
+        }
+        assert !b.hasRemaining() : "bytes after IEND";
+        assert idats > 1 : "expected the data split over several IDAT chunks";
+        BufferedImage back = ImageIO.read(png.toFile());
+        int[] pixels = pixels(img);
+        for (int j = 0; j < img.height; j++) {
+            for (int i = 0; i < img.width; i++) {
+                assert (back.getRGB(i, j) & 0xffffff) == pixels[j * img.width + i] : "PNG pixel " + i + ", " + j;
+            }
+        }
+
+        Path ppm = new File("encoder.ppm").toPath();
+        new Ppm().encode(img, ppm);
+        String ppmHeader = String.format("P6\n%d %d\n255\n", img.width, img.height);
+        assert Files.size(ppm) == ppmHeader.length() + 3L * img.width * img.height : "PPM size";
+        Path pgm = new File("encoder.pgm").toPath();
+        new Pgm16().encode(img, pgm);
+        String pgmHeader = String.format("P5\n%d %d\n65535\n", img.width, img.height);
+        assert Files.size(pgm) == pgmHeader.length() + 2L * img.width * img.height : "PGM size";
+        System.out.printf("PNG %d bytes, PPM %d bytes, PGM %d bytes%n", Files.size(png),
+                          Files.size(ppm), Files.size(pgm));
+    }
+}
@@ -1,123 +1,210 @@
 import java.util.Vector;
-import java.util.function.Function;
+import java.util.function.DoubleUnaryOperator;
 import static java.lang.Math.random;
 
 /**
- * Simple linear regression resulting in model of y = ax + b for data points
+ * Simple linear regression resulting in model of y = ax + b for data points.
+ * The fit is built from running moments, updated one point at a time with
+ * Welford's method, so data can be streamed in with <code> add </code>
+ * without being stored, and partial regressions, e.g. one per thread, can
+ * be combined with <code> merge </code>. Adding or merging only updates the
+ * moments, in constant time; the slope, constant and summary values are
+ * computed from them when next asked for, through <code> beta0() </code>,
+ * <code> beta1() </code>, <code> R2() </code> and the other getters.
  * @author J. Marcus Hughes
  */
 public class LinearRegression {
-    double[] xs;         // input reference data
-    double[] ys;         // input predicted value
+    double[] xs;         // input reference data, null when streamed
+    double[] ys;         // input predicted value, null when streamed
+    long n;              // number of points
     double xbar;         // mean of xs
-    double xbarsquared;  // mean of xs squared i.e. sum(x^2)  / n
+    private double xbarsquared;  // mean of xs squared i.e. sum(x^2)  / n
     double ybar;         // mean of ys
-    double ybarsquared;  // mean of ys squared, see xbarsquared
-    double beta0;        // constant term, b, in model y = ax + b
-    double beta1;        // slope term, a, in model y = ax + b
+    private double ybarsquared;  // mean of ys squared, see xbarsquared
+    private double beta0;        // constant term, b, in model y = ax + b
+    private double beta1;        // slope term, a, in model y = ax + b
     double xxbar;        // square of x - xbar over xs
     double yybar;        // square of y - ybar over ys
     double xybar;        // (x - xbar) * (y - ybar) over xs, xs
-    double R2;           // correlation term
-    double svar1;        // variance of slope 
-    double svar0;        // variance of constant
-    double rss;          // residual sum of squares
-    double ssr;          // regression sum of squares
+    private double R2;           // correlation term
+    private double svar1;        // variance of slope 
+    private double svar0;        // variance of constant
+    private double rss;          // residual sum of squares
+    private double ssr;          // regression sum of squares
+    private boolean stale;       // moments changed since the last fit
+
+    /**
+     * Construct an empty <code>LinearRegression</code> to stream points 
+     * into with <code> add </code>
+     */
+    LinearRegression() {
+    }
 
     /**
      * Construct a <code>LinearRegression</code> object with input data
      * automatically performs the regression and the model can be found
-     * <code> model() </code> or seen in String, exact values are in 
-     * <code>this.beta0</code> for constant and <code>this.beta1</code> 
+     * <code> model() </code> or seen in String, exact values are given by
+     * <code>beta0()</code> for constant and <code>beta1()</code> 
      * for slope term
      * @param xs certain values
      * @param ys predicted values
      */
     LinearRegression(double[] xs, double[] ys) {
+        if (xs.length == 0)
+            throw new RuntimeException("Input array must be nonempty");
+        if (xs.length != ys.length)
+            throw new RuntimeException("Input arrays must be the same length");
+        for (int i = 0; i < xs.length; i++) {
+            update(xs[i], ys[i]);
+        }
         this.xs = xs;
         this.ys = ys;
+        fit();
+    }
 
-        // calculate the means
-        double[] xbars = mean(xs);
-        this.xbar = xbars[0];
-        this.xbarsquared = xbars[1];
-
-        double[] ybars = mean(ys);
-        this.ybar = ybars[0];
-        this.ybarsquared = ybars[1];
+    /**
+     * Include another data point in the regression
+     * @param x certain value
+     * @param y predicted value
+     */
+    public void add(double x, double y) {
+        update(x, y);
+        stale = true;
+    }
 
-        // determine certainty and fit
-        fit();
+    /**
+     * Welford update of the running moments
+     */
+    private void update(double x, double y) {
+        n++;
+        double dx = x - xbar;
+        double dy = y - ybar;
+        xbar += dx / n;
+        ybar += dy / n;
+        xxbar += dx * (x - xbar);
+        yybar += dy * (y - ybar);
+        xybar += dx * (y - ybar);
     }
-    
+
     /**
-     * Calculates the mean of some input array
-     * @param xs array of values to average, must be nonempty
-     * @return average of values
+     * Include all the data points of another regression, the result is 
+     * the same as if every point had been added to this one
+     * @param other regression over other data points
      */
-    private static double[] mean(double[] xs) {
-        if (xs.length == 0)
-            throw new RuntimeException("Input array must be nonempty");
-        double sum = 0.0;
-        double sumsquared = 0.0;
-        for (double x: xs) {
-            sum += x;
-            sumsquared += (x * x);
+    public void merge(LinearRegression other) {
+        if (other.n == 0) {
+            return;
         }
-        return new double[]{sum/xs.length, sumsquared/xs.length};
+        long count = n + other.n;
+        double dx = other.xbar - xbar;
+        double dy = other.ybar - ybar;
+        double weight = (double) n * other.n / count;
+        xxbar += other.xxbar + dx * dx * weight;
+        yybar += other.yybar + dy * dy * weight;
+        xybar += other.xybar + dx * dy * weight;
+        xbar += dx * other.n / count;
+        ybar += dy * other.n / count;
+        n = count;
+        this.xs = null;
+        this.ys = null;
+        stale = true;
     }
 
-
     /** 
-     * Performs fit and calculates summary statistics
+     * Calculates fit and summary statistics from the running moments
      */
     private void fit() {
-        double xxbar = 0.0, yybar = 0.0, xybar = 0.0;
-        for (int i = 0; i < xs.length; i++) {
-            xxbar += (xs[i] - xbar) * (xs[i] - xbar);
-            yybar += (ys[i] - ybar) * (ys[i] - ybar);
-            xybar += (xs[i] - xbar) * (ys[i] - ybar);
-        }
+        stale = false;
         // determine fit parameters
-        double beta1 = xybar / xxbar;
-        double beta0 = ybar - beta1 * xbar;
-
-        // store values
-        this.xxbar = xxbar;
-        this.yybar = yybar;
-        this.xybar = xybar;
-        this.beta0 = beta0;
-        this.beta1 = beta1;
+        this.beta1 = xybar / xxbar;
+        this.beta0 = ybar - beta1 * xbar;
+        this.xbarsquared = xxbar / n + xbar * xbar;
+        this.ybarsquared = yybar / n + ybar * ybar;
 
         // determine summary stats
-        int df = xs.length - 2;
-        this.rss = 0.0; // residual sum of squares
-        this.ssr = 0.0; // regression sum of squares
-        for (int i = 0; i < xs.length; i++) {
-            double fit = beta1*xs[i] + beta0;
-            rss += (fit - ys[i]) * (fit - ys[i]);
-            ssr += (fit - ybar) * (fit - ybar);
-        }
+        long df = n - 2;
+        this.ssr = beta1 * xybar;  // regression sum of squares
+        this.rss = yybar - ssr;    // residual sum of squares
         this.R2    = ssr / yybar;
         double svar  = rss / df;
         this.svar1 = svar / xxbar;
-        this.svar0 = svar/xs.length + xbar*xbar*svar1;
+        this.svar0 = svar/n + xbar*xbar*svar1;
     }
 
     /** 
-     * Returns model as callable function. Use by calling with apply(VALUE)
+     * Returns model as callable function. Use by calling with applyAsDouble(VALUE)
      * For example:
-     * Function<Double, Double> f = m.model();
-     * f.apply(3.4);
+     * DoubleUnaryOperator f = m.model();
+     * f.applyAsDouble(3.4);
      */
-    public Function<Double, Double> model() {
-        return (Double x) -> this.beta1 * x + this.beta0;
+    public DoubleUnaryOperator model() {
+        double beta0 = beta0();
+        double beta1 = beta1();
+        return (x) -> beta1 * x + beta0;
+    }
+
+    /**
+     * Refit if points were added or merged since the last fit
+     */
+    private void refresh() {
+        if (stale) {
+            fit();
+        }
+    }
+
+    /**
+     * @return constant term, b, in model y = ax + b
+     */
+    public double beta0() {
+        refresh();
+        return beta0;
+    }
+
+    /**
+     * @return slope term, a, in model y = ax + b
+     */
+    public double beta1() {
+        refresh();
+        return beta1;
+    }
+
+    /**
+     * @return fraction of the variance of y explained by the model
+     */
+    public double R2() {
+        refresh();
+        return R2;
+    }
+
+    /**
+     * @return variance of the estimate of the slope
+     */
+    public double svar1() {
+        refresh();
+        return svar1;
+    }
+
+    /**
+     * @return variance of the estimate of the constant
+     */
+    public double svar0() {
+        refresh();
+        return svar0;
+    }
+
+    /**
+     * @return residual sum of squares
+     */
+    public double rss() {
+        refresh();
+        return rss;
     }
 
     /** 
      * Creates a string with linear model and parameters
      */
     public String toString() {
+        refresh();
         return String.format("y = %.2f x + %.2f with R^2=%.2f", beta1, beta0, R2);
     }
 
@@ -127,11 +214,43 @@ public class LinearRegression {
     public static void main(String[] args) {
         double[] xs = new double[]{2.0, 3.0, 4.0};
         LinearRegression m = new LinearRegression(xs, xs);
-        System.out.println(m.mean(xs)[0]);
         System.out.println(m.xbar);
-        System.out.printf("y = %.2f x + %.2f\n", m.beta1, m.beta0);
+        System.out.printf("y = %.2f x + %.2f\n", m.beta1(), m.beta0());
         System.out.println(m);
-        Function<Double, Double> f = m.model();
-        System.out.println(f.apply(2.0));
+        DoubleUnaryOperator f = m.model();
+        System.out.println(f.applyAsDouble(2.0));
+
+        // the same fit, streamed in two halves and merged
+        LinearRegression a = new LinearRegression();
+        LinearRegression b = new LinearRegression();
+        a.add(2.0, 2.0);
+        b.add(3.0, 3.0);
+        b.add(4.0, 4.0);
+        a.merge(b);
+        System.out.println(a);
+
+        // a noisy fit streamed in uneven, interleaved parts and merged must match the batch fit
+        double[] x = new double[1000];
+        double[] y = new double[1000];
+        for (int i = 0; i < x.length; i++) {
+            x[i] = 100.0 + 5.0 * random();
+            y[i] = 2.0 * x[i] + random();
+        }
+        LinearRegression batch = new LinearRegression(x, y);
+        LinearRegression p = new LinearRegression();
+        LinearRegression q = new LinearRegression();
+        for (int i = 0; i < x.length; i++) {
+            if (i % 3 == 0) {
+                p.add(x[i], y[i]);
+            } else {
+                q.add(x[i], y[i]);
+            }
+        }
+        p.merge(q);
+        assert p.n == batch.n : "merged count";
+        assert Math.abs(p.beta1() - batch.beta1()) < 1e-9 * Math.abs(batch.beta1()) : "merged slope " + p.beta1() + " vs " + batch.beta1();
+        assert Math.abs(p.beta0() - batch.beta0()) < 1e-9 * Math.abs(batch.beta0()) + 1e-9 : "merged constant " + p.beta0() + " vs " + batch.beta0();
+        assert Math.abs(p.R2() - batch.R2()) < 1e-9 : "merged R^2 " + p.R2() + " vs " + batch.R2();
+        assert Math.abs(p.xxbar - batch.xxbar) < 1e-9 * batch.xxbar : "merged spread of x";
     }
 }
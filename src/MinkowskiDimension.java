@@ -1,39 +1,205 @@
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Vector;
-/*** NOT FINISHED ***/
 
 /**
- * Calculate the box-counting/Minkowski dimension for a set of points
+ * Calculate the box-counting/Minkowski dimension for a set of points in
+ * the plane.
+ * The points are scaled into the unit square and quantized to a grid of
+ * 2^31 by 2^31 boxes. The two box coordinates are interleaved into a single
+ * Morton code, so that the code of a box at level j, with side 2^-j, is the
+ * first 2j bits of the code of any point in it. After sorting the codes,
+ * two neighbors fall in different boxes at level j exactly when their
+ * codes differ in the first 2j bits, so a single pass over the sorted codes
+ * counts the occupied boxes at every level at once. The dimension is the
+ * slope of log(count) against log(1/side), found with
+ * <code> LinearRegression </code>. Costs O(n log n) for the sort and O(n)
+ * for the counting.
+ * @author J. Marcus Hughes
  */
 public class MinkowskiDimension {
-    int dimension;
-    Vector<Vector<Double>> pointSet;
-    Vector<Double> sizes;
-    Vector<Integer> counts;
+    static final int MAX_LEVEL = 31; // bits per coordinate in a code
+    double[] xs;      // x coordinates of the points
+    double[] ys;      // y coordinates of the points
+    int minLevel;     // coarsest level used in the fit
+    int maxLevel;     // finest level used in the fit
+    double[] sizes;   // side of a box at each level, relative to the point set
+    long[] counts;    // occupied boxes at each level
+    LinearRegression fit; // log(counts) against log(1/sizes) over the used levels
+    double dimension; // estimated dimension, the slope of the fit
 
     /**
-     * TODO
+     * Estimate the dimension using the levels that the number of points can
+     * resolve, from boxes of side 1/4 down to about one point per box in a
+     * filled square
+     * @param xs x coordinates of the points
+     * @param ys y coordinates of the points
      */
-    MinkowskiDimension(int dimension, Vector<Vector<Double>> pointSet) {
-        this.dimension = dimension;
-        this.pointSet = pointSet;
-        for (Vector<Double> v : pointSet) {
-            if (v.size() != dimension) {
-                throw new RuntimeException("All points must be of the same dimension.");
+    MinkowskiDimension(double[] xs, double[] ys) {
+        this(xs, ys, 2, defaultMaxLevel(xs.length));
+    }
+
+    /**
+     * Estimate the dimension using a chosen range of levels
+     * @param xs x coordinates of the points
+     * @param ys y coordinates of the points
+     * @param minLevel coarsest level in the fit, boxes of side 2^-minLevel
+     * @param maxLevel finest level in the fit, at most 31
+     */
+    MinkowskiDimension(double[] xs, double[] ys, int minLevel, int maxLevel) {
+        if (xs.length != ys.length) {
+            throw new RuntimeException("xs and ys must be the same length");
+        }
+        if (xs.length == 0) {
+            throw new RuntimeException("Point set must be nonempty");
+        }
+        if (minLevel < 0 || maxLevel > MAX_LEVEL || maxLevel - minLevel < 2) {
+            throw new RuntimeException("Need 0 <= minLevel, maxLevel <= 31 and at least 3 levels");
+        }
+        this.xs = xs;
+        this.ys = ys;
+        this.minLevel = minLevel;
+        this.maxLevel = maxLevel;
+        this.sizes = new double[MAX_LEVEL + 1];
+        for (int j = 0; j <= MAX_LEVEL; j++) {
+            this.sizes[j] = Math.scalb(1.0, -j);
+        }
+        this.counts = countBoxes(xs, ys);
+
+        double[] logInverseSize = new double[maxLevel - minLevel + 1];
+        double[] logCount = new double[maxLevel - minLevel + 1];
+        for (int j = minLevel; j <= maxLevel; j++) {
+            logInverseSize[j - minLevel] = -Math.log(sizes[j]);
+            logCount[j - minLevel] = Math.log(counts[j]);
+        }
+        this.fit = new LinearRegression(logInverseSize, logCount);
+        this.dimension = fit.beta1();
+    }
+
+    /**
+     * Finest level that n points can fill without every box holding at most
+     * one point, 4^level is about n
+     */
+    static int defaultMaxLevel(int n) {
+        int level = (63 - Long.numberOfLeadingZeros(Math.max(1, n))) / 2;
+        return Math.max(4, Math.min(MAX_LEVEL, level));
+    }
+
+    /**
+     * Count the occupied boxes at every level in one pass over sorted
+     * Morton codes
+     * @param xs x coordinates of the points
+     * @param ys y coordinates of the points
+     * @return number of occupied boxes of side 2^-j, for j from 0 to 31
+     */
+    static long[] countBoxes(double[] xs, double[] ys) {
+        long[] codes = mortonCodes(xs, ys);
+        Arrays.parallelSort(codes);
+
+        // firstDiffer[j] counts neighbors that first land in different boxes at level j
+        long[] firstDiffer = new long[MAX_LEVEL + 1];
+        for (int i = 1; i < codes.length; i++) {
+            long diff = codes[i] ^ codes[i - 1];
+            if (diff != 0) {
+                int highest = 63 - Long.numberOfLeadingZeros(diff);
+                firstDiffer[(2 * MAX_LEVEL + 1 - highest) / 2]++;
             }
         }
-        this.counts = new Vector<Integer>();
-        this.sizes = new Vector<Double>();
+        // once two neighbors are in different boxes they are at every finer level
+        long[] counts = new long[MAX_LEVEL + 1];
+        long boxes = 1;
+        for (int j = 0; j <= MAX_LEVEL; j++) {
+            boxes += firstDiffer[j];
+            counts[j] = boxes;
+        }
+        return counts;
+    }
+
+    /**
+     * Scale the points into the unit square and interleave their quantized
+     * coordinates
+     * @return one code per point, x in the even bits and y in the odd bits
+     */
+    static long[] mortonCodes(double[] xs, double[] ys) {
+        double xmin = Double.POSITIVE_INFINITY, xmax = Double.NEGATIVE_INFINITY;
+        double ymin = Double.POSITIVE_INFINITY, ymax = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < xs.length; i++) {
+            xmin = Math.min(xmin, xs[i]);
+            xmax = Math.max(xmax, xs[i]);
+            ymin = Math.min(ymin, ys[i]);
+            ymax = Math.max(ymax, ys[i]);
+        }
+        // a square so that boxes are squares, same scale on both axes
+        double side = Math.max(xmax - xmin, ymax - ymin);
+        double scale = side > 0 ? Math.scalb(1.0, MAX_LEVEL) / side : 0.0;
+        long top = (1L << MAX_LEVEL) - 1;
+
+        long[] codes = new long[xs.length];
+        for (int i = 0; i < xs.length; i++) {
+            long qx = Math.min(top, (long)((xs[i] - xmin) * scale));
+            long qy = Math.min(top, (long)((ys[i] - ymin) * scale));
+            codes[i] = spread(qx) | (spread(qy) << 1);
+        }
+        return codes;
+    }
+
+    /**
+     * Move bit k of a 32 bit value to bit 2k
+     */
+    private static long spread(long v) {
+        v = (v | (v << 16)) & 0x0000ffff0000ffffL;
+        v = (v | (v << 8))  & 0x00ff00ff00ff00ffL;
+        v = (v | (v << 4))  & 0x0f0f0f0f0f0f0f0fL;
+        v = (v | (v << 2))  & 0x3333333333333333L;
+        v = (v | (v << 1))  & 0x5555555555555555L;
+        return v;
     }
 
-    private int count_boxes() {
-        return 0; // TODO        
+    /**
+     * String representation
+     */
+    public String toString() {
+        return String.format("dimension %.4f from levels %d to %d, %s",
+                             dimension, minLevel, maxLevel, fit);
     }
-    
 
     /**
-     * testing function
+     * testing function, the Sierpinski triangle has dimension log 3 / log 2 = 1.585
      */
     public static void main(String[] args) {
-        System.out.println("NOT FINISHED")
+        Vector<Transform> transforms = new Vector<Transform>();
+        Matrix shrink = new Matrix(0.5, 0.0, 0.0, 0.5);
+        transforms.add(new AffineTransform(shrink, new Matrix(0.0, 0.0)));
+        transforms.add(new AffineTransform(shrink, new Matrix(0.5, 0.0)));
+        transforms.add(new AffineTransform(shrink, new Matrix(0.0, 0.5)));
+        IFS system = new IFS(transforms);
+
+        RandomIFSEvaluator ifsRunner = new RandomIFSEvaluator(system, 1000, 999);
+        ifsRunner.setBurnIn(20); // let each trajectory settle on the attractor
+        double[] xs = new double[1000 * 1000];
+        double[] ys = new double[1000 * 1000];
+        int[] n = new int[1];
+        ifsRunner.stream((it, t, x, y) -> {
+                xs[n[0]] = x;
+                ys[n[0]] = y;
+                n[0]++;
+            });
+        MinkowskiDimension d = new MinkowskiDimension(xs, ys);
+        System.out.println(d);
+        System.out.println("expected " + Math.log(3) / Math.log(2));
+        assert Math.abs(d.dimension - Math.log(3) / Math.log(2)) < 0.05 : "dimension off";
+
+        // the level of the first differing bit must agree with counting box prefixes directly
+        double[] px = Arrays.copyOf(xs, 5000);
+        double[] py = Arrays.copyOf(ys, 5000);
+        long[] counts = countBoxes(px, py);
+        long[] codes = mortonCodes(px, py);
+        for (int j = 0; j <= MAX_LEVEL; j++) {
+            HashSet<Long> boxes = new HashSet<Long>();
+            for (long code : codes) {
+                boxes.add(code >>> (2 * (MAX_LEVEL - j)));
+            }
+            assert counts[j] == boxes.size() : "level " + j + " counts " + counts[j] + " boxes, expected " + boxes.size();
+        }
     }
 }
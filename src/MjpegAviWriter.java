@@ -0,0 +1,265 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Writes a Motion JPEG AVI file, a video that is a sequence of JPEG
+ * frames, which every common player reads. Frames are appended to the 
+ * file as they arrive, so a long animation never has to be held in
+ * memory, and the sizes and frame counts in the headers are patched and
+ * the index written when the file is closed.
+ * <pre>
+ * RIFF 'AVI '
+ *   LIST 'hdrl'
+ *     'avih'  main header: frame time, frame count, size
+ *     LIST 'strl'
+ *       'strh'  stream header: video, MJPG, rate, length
+ *       'strf'  BITMAPINFOHEADER
+ *   LIST 'movi'
+ *     '00dc'  one JPEG per frame, padded to even length
+ *   'idx1'  offset and size of every frame
+ * </pre>
+ * All values are little endian. This is the original AVI 1.0 layout, whose
+ * 32 bit offsets and common players stop at 1 GB, so a frame that would
+ * take the file past <code> MAX_SIZE </code> is refused; the frames before
+ * it still make a complete video once the writer is closed.
+ * @author J. Marcus Hughes
+ * @see Animation
+ */
+public class MjpegAviWriter implements Closeable {
+    static final int AVIF_HASINDEX = 0x10;  // avih flag, an idx1 index follows
+    static final int AVIIF_KEYFRAME = 0x10; // idx1 flag, frame stands alone
+    static final long TOTAL_FRAMES = 48;    // offset of avih dwTotalFrames
+    static final long MAX_BYTES = 36;       // offset of avih dwMaxBytesPerSec
+    static final long AVIH_BUFFER = 60;     // offset of avih dwSuggestedBufferSize
+    static final long STRH_LENGTH = 140;    // offset of strh dwLength
+    static final long STRH_BUFFER = 144;    // offset of strh dwSuggestedBufferSize
+    static final long MOVI = 212;           // offset of the movi LIST
+    static final long MAX_SIZE = 1L << 30;  // largest file AVI 1.0 players read
+    int width;      // pixels wide of every frame
+    int height;     // pixels high of every frame
+    double fps;     // frames per second
+    int frames;     // frames written so far
+    private FileChannel channel;
+    private long position;  // end of the data written so far
+    private int largest;    // largest frame in bytes
+    private ByteArrayOutputStream index; // idx1 entries so far
+
+    /**
+     * Start a video, replacing anything already in the file
+     * @param file where to write the video
+     * @param width pixels wide of every frame
+     * @param height pixels high of every frame
+     * @param fps frames per second
+     */
+    MjpegAviWriter(Path file, int width, int height, double fps) {
+        assert fps > 0 : "fps must be positive";
+        this.width = width;
+        this.height = height;
+        this.fps = fps;
+        this.index = new ByteArrayOutputStream();
+        try {
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                                            StandardOpenOption.WRITE,
+                                            StandardOpenOption.TRUNCATE_EXISTING);
+            writeHeaders();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not create " + file, e);
+        }
+    }
+
+    /**
+     * Write the headers with the counts still zero, up to the movi list
+     */
+    private void writeHeaders() throws IOException {
+        ByteBuffer b = ByteBuffer.allocate((int) MOVI + 12).order(ByteOrder.LITTLE_ENDIAN);
+        fourcc(b, "RIFF"); b.putInt(0); fourcc(b, "AVI ");
+        fourcc(b, "LIST"); b.putInt(192); fourcc(b, "hdrl");
+        fourcc(b, "avih"); b.putInt(56);
+        b.putInt((int) Math.round(1e6 / fps)); // microseconds per frame
+        b.putInt(0);                           // max bytes per second, patched
+        b.putInt(0);                           // padding granularity
+        b.putInt(AVIF_HASINDEX);
+        b.putInt(0);                           // total frames, patched
+        b.putInt(0);                           // initial frames
+        b.putInt(1);                           // streams
+        b.putInt(0);                           // suggested buffer size, patched
+        b.putInt(width);
+        b.putInt(height);
+        b.putInt(0); b.putInt(0); b.putInt(0); b.putInt(0);
+        fourcc(b, "LIST"); b.putInt(116); fourcc(b, "strl");
+        fourcc(b, "strh"); b.putInt(56);
+        fourcc(b, "vids"); fourcc(b, "MJPG");
+        b.putInt(0);                           // flags
+        b.putShort((short) 0); b.putShort((short) 0); // priority, language
+        b.putInt(0);                           // initial frames
+        int scale = 1000;
+        b.putInt(scale);                       // rate / scale is frames per second
+        b.putInt((int) Math.round(fps * scale));
+        b.putInt(0);                           // start
+        b.putInt(0);                           // length in frames, patched
+        b.putInt(0);                           // suggested buffer size, patched
+        b.putInt(-1);                          // quality, default
+        b.putInt(0);                           // sample size, varies
+        b.putShort((short) 0); b.putShort((short) 0);
+        b.putShort((short) width); b.putShort((short) height);
+        fourcc(b, "strf"); b.putInt(40);
+        b.putInt(40);                          // BITMAPINFOHEADER size
+        b.putInt(width);
+        b.putInt(height);
+        b.putShort((short) 1);                 // planes
+        b.putShort((short) 24);                // bits per pixel
+        fourcc(b, "MJPG");
+        b.putInt(width * height * 3);
+        b.putInt(0); b.putInt(0); b.putInt(0); b.putInt(0);
+        fourcc(b, "LIST"); b.putInt(0); fourcc(b, "movi");
+        assert b.position() == MOVI + 12 : "header layout";
+        b.flip();
+        write(b, 0);
+        position = b.limit();
+    }
+
+    /**
+     * Append a frame
+     * @param jpeg a complete JPEG image of the frame size
+     */
+    public void addFrame(byte[] jpeg) {
+        int padded = jpeg.length + (jpeg.length & 1);
+        // the frame, its index entry and the idx1 header must all fit
+        long size = position + 8 + padded + 8 + index.size() + 16;
+        if (size > MAX_SIZE) {
+            throw new RuntimeException(String.format("Frame %d would take the video to %d bytes, "
+                                                     + "past the AVI limit of %d", frames, size, MAX_SIZE));
+        }
+        ByteBuffer b = ByteBuffer.allocate(8 + padded).order(ByteOrder.LITTLE_ENDIAN);
+        fourcc(b, "00dc");
+        b.putInt(jpeg.length);
+        b.put(jpeg);
+        b.position(0);
+        try {
+            write(b, position);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write frame " + frames, e);
+        }
+        ByteBuffer entry = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        fourcc(entry, "00dc");
+        entry.putInt(AVIIF_KEYFRAME);
+        entry.putInt((int)(position - (MOVI + 8))); // from the 'movi' fourcc
+        entry.putInt(jpeg.length);
+        index.write(entry.array(), 0, 16);
+        position += b.limit();
+        largest = Math.max(largest, jpeg.length);
+        frames++;
+    }
+
+    /**
+     * Write the index, patch the sizes and counts, and release the file
+     */
+    public void close() throws IOException {
+        try {
+            ByteBuffer idx = ByteBuffer.allocate(8 + index.size()).order(ByteOrder.LITTLE_ENDIAN);
+            fourcc(idx, "idx1");
+            idx.putInt(index.size());
+            idx.put(index.toByteArray());
+            idx.flip();
+            long moviEnd = position;
+            write(idx, position);
+            position += idx.limit();
+
+            patch(4, (int)(position - 8));                 // RIFF size
+            patch(MOVI + 4, (int)(moviEnd - (MOVI + 8)));  // movi LIST size
+            patch(TOTAL_FRAMES, frames);
+            patch(STRH_LENGTH, frames);
+            patch(MAX_BYTES, (int) Math.min(Integer.MAX_VALUE, Math.round(largest * fps)));
+            patch(AVIH_BUFFER, largest + 8);
+            patch(STRH_BUFFER, largest + 8);
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Overwrite a 32 bit value
+     */
+    private void patch(long offset, int value) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(0, value);
+        write(b, offset);
+    }
+
+    /**
+     * Write all of a buffer at a position
+     */
+    private void write(ByteBuffer b, long offset) throws IOException {
+        while (b.hasRemaining()) {
+            channel.write(b, offset + b.position());
+        }
+    }
+
+    /**
+     * Put a four character code
+     */
+    private static void fourcc(ByteBuffer b, String code) {
+        b.put(code.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Read a four character code at a position
+     */
+    private static String fourcc(ByteBuffer b, int offset) {
+        byte[] code = new byte[4];
+        for (int k = 0; k < 4; k++) {
+            code[k] = b.get(offset + k);
+        }
+        return new String(code, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * testing main, writes frames of odd and even length and walks the
+     * file: the RIFF and movi sizes, the patched counts and buffer sizes,
+     * and every index entry pointing at its frame
+     */
+    public static void main(String[] args) throws IOException {
+        Path file = new File("layout.avi").toPath();
+        byte[][] frames = new byte[5][];
+        for (int k = 0; k < frames.length; k++) {
+            frames[k] = new byte[1000 + 37 * k];
+            Arrays.fill(frames[k], (byte) k);
+        }
+        try (MjpegAviWriter video = new MjpegAviWriter(file, 320, 240, 25)) {
+            for (byte[] frame : frames) {
+                video.addFrame(frame);
+            }
+        }
+
+        ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+        assert fourcc(b, 0).equals("RIFF") && fourcc(b, 8).equals("AVI ") : "RIFF header";
+        assert b.getInt(4) == b.limit() - 8 : "RIFF size";
+        assert b.getInt((int) TOTAL_FRAMES) == frames.length : "avih frame count";
+        assert b.getInt((int) STRH_LENGTH) == frames.length : "strh length";
+        int largest = 1000 + 37 * (frames.length - 1);
+        assert b.getInt((int) AVIH_BUFFER) == largest + 8 && b.getInt((int) STRH_BUFFER) == largest + 8 : "buffer sizes";
+        assert fourcc(b, (int) MOVI).equals("LIST") && fourcc(b, (int) MOVI + 8).equals("movi") : "movi list";
+        int idx1 = (int) MOVI + 8 + b.getInt((int) MOVI + 4);
+        assert fourcc(b, idx1).equals("idx1") : "idx1 after movi";
+        assert b.getInt(idx1 + 4) == 16 * frames.length : "idx1 size";
+        assert idx1 + 8 + 16 * frames.length == b.limit() : "idx1 ends the file";
+        for (int k = 0; k < frames.length; k++) {
+            int entry = idx1 + 8 + 16 * k;
+            assert fourcc(b, entry).equals("00dc") && b.getInt(entry + 4) == AVIIF_KEYFRAME : "index entry " + k;
+            int chunk = (int) MOVI + 8 + b.getInt(entry + 8);
+            assert fourcc(b, chunk).equals("00dc") : "index " + k + " does not point at a frame";
+            assert b.getInt(chunk + 4) == frames[k].length && b.getInt(entry + 12) == frames[k].length : "frame " + k + " size";
+            assert b.get(chunk + 8) == k && b.get(chunk + 7 + frames[k].length) == k : "frame " + k + " data";
+            assert chunk % 2 == 0 : "frame " + k + " not word aligned";
+        }
+        System.out.printf("%d frames, %d bytes, layout ok%n", frames.length, b.limit());
+    }
+}
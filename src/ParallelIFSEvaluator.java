@@ -0,0 +1,253 @@
+import java.util.Vector;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A multi-threaded version of the probabilistic evaluator. The starting
+ * points are split into fixed size blocks that are spread across a
+ * <code> ForkJoinPool </code>. Each starting point draws from its own
+ * generator seeded from the evaluator seed and the point number, and each
+ * worker thread feeds its own part of the sink, made with 
+ * <code> PointSink.fork </code>, e.g. its own <code> Histogram </code>. The 
+ * parts are joined at the end, so with a fixed seed the result does
+ * not depend on the number of threads, and any range of starting points
+ * can be run, or run again, on its own.
+ * As in <code> RandomIFSEvaluator </code> a burn-in can be set so that
+ * only points on the attractor are reported.
+ * @author J. Marcus Hughes
+ * @see RandomIFSEvaluator
+ */
+public class ParallelIFSEvaluator extends IFSEvaluator {
+    static final int BLOCK_SIZE = 256; // starting points per block
+    int numPoints;
+    int iterations;
+    long seed;
+    int burnIn; // unreported steps each walker takes before its starting point
+    ForkJoinPool pool;
+
+    /** Set up the evaluator with a random seed on the common pool
+     * @param ifs an initialized iterated function system
+     * @param numPoints how many randomly selected initial starting locations to run
+     * @param iterations how many iterations should be evaluated for each point
+     */
+    ParallelIFSEvaluator(IFS ifs, int numPoints, int iterations) {
+        this(ifs, numPoints, iterations, new SplittableRandom().nextLong());
+    }
+
+    /** Set up the evaluator with a fixed seed on the common pool
+     * @param ifs an initialized iterated function system
+     * @param numPoints how many randomly selected initial starting locations to run
+     * @param iterations how many iterations should be evaluated for each point
+     * @param seed makes the result deterministic
+     */
+    ParallelIFSEvaluator(IFS ifs, int numPoints, int iterations, long seed) {
+        assert numPoints > 0 : "numPoints must be positive";
+        assert iterations > 0 : "iterations must be positive";
+        this.ifs = ifs;
+        this.numPoints = numPoints;
+        this.iterations = iterations;
+        this.seed = seed;
+        this.pool = ForkJoinPool.commonPool();
+    }
+
+    /**
+     * Skip the transient at the start of every walk
+     * @param burnIn steps not reported, 0 to report every step
+     * @see RandomIFSEvaluator#setBurnIn
+     */
+    public void setBurnIn(int burnIn) {
+        assert burnIn >= 0 : "burnIn must not be negative";
+        this.burnIn = burnIn;
+    }
+
+    /**
+     * Choose which pool the work is run on
+     * @param pool executor for the blocks of starting points
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Send every point of every trajectory, including the starting point,
+     * into a sink that can be forked
+     * @see IFSEvaluator
+     */
+    public void evaluate(PointSink sink) {
+        run(sink, 0, numPoints);
+    }
+
+    /**
+     * Simulate running on many points, counting every point of every
+     * trajectory, including the starting point, into <code> target </code>
+     * @param target histogram the counts are added to
+     */
+    public void run(Histogram target) {
+        run(target, 0, numPoints);
+    }
+
+    /**
+     * Simulate running on a range of the starting points. Each worker
+     * thread feeds its own fork of <code> target </code>, and the forks
+     * are joined into it at the end. Blocks not yet started are skipped
+     * once a fork reports it is done.
+     * @param target sink the points are sent to, must support fork and join
+     * @param from first starting point to run
+     * @param to one past the last starting point to run
+     */
+    public void run(PointSink target, int from, int to) {
+        if (!target.canFork()) {
+            throw new RuntimeException(target.getClass().getName() + " cannot be fed from several "
+                                       + "threads, use RandomIFSEvaluator or a sink that can fork");
+        }
+        if (from >= to) {
+            return;
+        }
+        CompiledIFS system = ifs.compile();
+        int blocks = (to - from + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        ConcurrentHashMap<Thread, PointSink> parts = new ConcurrentHashMap<>();
+        pool.invoke(new Blocks(system, target, parts, from, to, 0, blocks));
+        for (PointSink part : parts.values()) {
+            target.join(part);
+        }
+    }
+
+    /**
+     * Simulate running on all starting points, accumulating into a file.
+     * Starts after the points the file already holds and checkpoints every
+     * <code> checkpointPoints </code> starting points, so an interrupted
+     * render can be resumed and a finished one extended with more points.
+     * Colors are taken from the palette saved in the file, not from the
+     * transforms, so that a resumed render keeps its colors.
+     * @param file accumulator created or opened with this evaluator's 
+     *        system, seed, iterations and burn-in
+     * @param layout histogram with the region and size wanted, which must
+     *        match those of the file
+     * @param checkpointPoints starting points between checkpoints
+     * @see HistogramFile
+     */
+    public void run(HistogramFile file, Histogram layout, int checkpointPoints) {
+        if (file.seed != seed || file.iterations != iterations || file.burnIn != burnIn) {
+            throw new RuntimeException("File was rendered with a different seed, iterations or burn-in");
+        }
+        file.check(ifs, layout);
+        int from = (int) file.pointsDone;
+        while (from < numPoints) {
+            int to = Math.min(numPoints, from + checkpointPoints);
+            Histogram part = file.emptyHistogram();
+            run(part, from, to);
+            file.add(part, to);
+            from = to;
+        }
+    }
+
+    /**
+     * Set up an evaluator that continues the render held in a file
+     * @param ifs the iterated function system the file was rendered from
+     * @param numPoints total starting points wanted, at least as many as are done
+     * @param file accumulator to resume
+     * @return evaluator with the seed, iterations and burn-in of the file
+     */
+    public static ParallelIFSEvaluator resume(IFS ifs, int numPoints, HistogramFile file) {
+        ParallelIFSEvaluator resumed = new ParallelIFSEvaluator(ifs, numPoints, file.iterations, file.seed);
+        resumed.setBurnIn(file.burnIn);
+        return resumed;
+    }
+
+    /**
+     * A range of blocks, split in half until a single block is left
+     */
+    private class Blocks extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final CompiledIFS system;
+        final PointSink target;
+        final ConcurrentHashMap<Thread, PointSink> parts;
+        final int from; // first starting point of block 0
+        final int to;   // one past the last starting point
+        final int lo;
+        final int hi;
+
+        Blocks(CompiledIFS system, PointSink target,
+               ConcurrentHashMap<Thread, PointSink> parts,
+               int from, int to, int lo, int hi) {
+            this.system = system;
+            this.target = target;
+            this.parts = parts;
+            this.from = from;
+            this.to = to;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        protected void compute() {
+            if (hi - lo == 1) {
+                PointSink local = parts.computeIfAbsent(Thread.currentThread(),
+                                                        (t) -> target.fork());
+                int start = from + lo * BLOCK_SIZE;
+                runPoints(start, Math.min(to, start + BLOCK_SIZE), system, local);
+            } else {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new Blocks(system, target, parts, from, to, lo, mid),
+                          new Blocks(system, target, parts, from, to, mid, hi));
+            }
+        }
+    }
+
+    /**
+     * Run a range of starting points
+     * @param start first starting point
+     * @param end one past the last starting point
+     * @param system the compiled IFS
+     * @param sink where to send the points
+     */
+    private void runPoints(int start, int end, CompiledIFS system, PointSink sink) {
+        double[] p = new double[2];
+        for (int n = start; n < end && !sink.isDone(); n++) {
+            SplittableRandom rng = new SplittableRandom(mix(seed + mix(n)));
+            p[0] = -1.0 + 2.0 * rng.nextDouble();
+            p[1] = -1.0 + 2.0 * rng.nextDouble();
+            for (int it = 0; it < burnIn; it++) {
+                system.apply(system.chooseIndex(rng.nextDouble()), p);
+            }
+            sink.accept(0, -1, p[0], p[1]);
+            for (int it = 1; it <= iterations; it++) {
+                int i = system.chooseIndex(rng.nextDouble());
+                system.apply(i, p);
+                sink.accept(it, i, p[0], p[1]);
+            }
+        }
+    }
+
+    /**
+     * Scramble the bits of a value, used to derive independent point seeds
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
+    /**
+     * testing main, renders the Sierpinski triangle
+     */
+    public static void main(String[] args) {
+        Vector<Transform> transforms = new Vector<Transform>();
+        Matrix shrink = new Matrix(0.5, 0.0, 0.0, 0.5);
+        transforms.add(new AffineTransform(shrink, new Matrix(-0.5, -0.5)));
+        transforms.add(new AffineTransform(shrink, new Matrix(0.5, -0.5)));
+        transforms.add(new AffineTransform(shrink, new Matrix(-0.5, 0.5)));
+        IFS system = new IFS(transforms);
+
+        ParallelIFSEvaluator ifsRunner = new ParallelIFSEvaluator(system, 100000, 100, 42L);
+        Histogram h = new Histogram(500, 500, -1.0, 1.0, -1.0, 1.0);
+        h.setColors(system);
+        long start = System.nanoTime();
+        ifsRunner.run(h);
+        System.out.printf("%d points in %.2f s%n", h.total(), (System.nanoTime() - start) / 1e9);
+        Image img = new Image(500, 500, -1.0, 1.0, -1.0, 1.0);
+        img.plot(h);
+        img.save("parallel.jpg");
+    }
+}
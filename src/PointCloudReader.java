@@ -0,0 +1,227 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Vector;
+
+/**
+ * Reads a point cloud written by <code> PointCloudWriter </code>. The file
+ * is memory mapped and the coordinates of every chunk are read through
+ * primitive views of the mapping, so replaying a cloud into a 
+ * <code> PointSink </code>, e.g. an <code> Image </code> over a new region
+ * or a <code> DimensionEstimator </code>, copies nothing. A file cut short
+ * is read up to its last complete chunk.
+ * The iteration of a point is not stored, replayed points are all
+ * reported as iteration 0.
+ * @author J. Marcus Hughes
+ * @see PointCloudWriter
+ */
+public class PointCloudReader implements Closeable {
+    static final long WINDOW_BYTES = 1L << 30; // most bytes in one mapping
+    boolean doublePrecision; // coordinates are float64 instead of float32
+    boolean transforms;      // whether transform indices are stored
+    long points;             // points in complete chunks
+    private FileChannel channel;
+    private MappedByteBuffer[] windows; // mappings covering whole chunks
+    private int[] chunkWindow;  // mapping holding each chunk
+    private int[] chunkOffset;  // offset of each chunk in its mapping
+    private int[] chunkCount;   // points in each chunk
+
+    /**
+     * Map a point cloud file
+     */
+    private PointCloudReader(Path file) {
+        try {
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+            ByteBuffer header = ByteBuffer.allocate(PointCloudWriter.HEADER_BYTES)
+                                          .order(ByteOrder.LITTLE_ENDIAN);
+            read(header, 0);
+            if (header.getLong(0) != PointCloudWriter.MAGIC
+                || header.getInt(8) != PointCloudWriter.VERSION) {
+                throw new RuntimeException(file + " is not a point cloud file");
+            }
+            int flags = header.getInt(12);
+            this.doublePrecision = (flags & PointCloudWriter.DOUBLES) != 0;
+            this.transforms = (flags & PointCloudWriter.TRANSFORMS) != 0;
+            mapChunks();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not map " + file, e);
+        }
+    }
+
+    /**
+     * Open a point cloud
+     * @param file a file made by <code> PointCloudWriter </code>
+     */
+    public static PointCloudReader open(Path file) {
+        return new PointCloudReader(file);
+    }
+
+    /**
+     * Read a buffer fully from a position of the file
+     * @return whether it was filled before the end of the file
+     */
+    private boolean read(ByteBuffer b, long position) throws IOException {
+        while (b.hasRemaining()) {
+            if (channel.read(b, position + b.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Walk the chunk headers and map windows of whole chunks
+     */
+    private void mapChunks() throws IOException {
+        ArrayList<long[]> chunks = new ArrayList<long[]>(); // offset, count
+        long size = channel.size();
+        long offset = PointCloudWriter.HEADER_BYTES;
+        ByteBuffer head = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        while (true) {
+            head.clear();
+            if (!read(head, offset)) {
+                break;
+            }
+            int count = head.getInt(0);
+            long bytes = PointCloudWriter.chunkBytes(count, doublePrecision, transforms);
+            if (count <= 0 || offset + bytes > size) {
+                break; // cut short
+            }
+            chunks.add(new long[]{offset, count});
+            points += count;
+            offset += bytes;
+        }
+
+        ArrayList<MappedByteBuffer> maps = new ArrayList<MappedByteBuffer>();
+        chunkWindow = new int[chunks.size()];
+        chunkOffset = new int[chunks.size()];
+        chunkCount = new int[chunks.size()];
+        long windowStart = 0, windowEnd = 0;
+        for (int c = 0; c < chunks.size(); c++) {
+            long start = chunks.get(c)[0];
+            int count = (int) chunks.get(c)[1];
+            long end = start + PointCloudWriter.chunkBytes(count, doublePrecision, transforms);
+            if (maps.isEmpty() || end - windowStart > WINDOW_BYTES) {
+                if (!maps.isEmpty()) {
+                    maps.set(maps.size() - 1, map(windowStart, windowEnd));
+                }
+                windowStart = start;
+                maps.add(null);
+            }
+            windowEnd = end;
+            chunkWindow[c] = maps.size() - 1;
+            chunkOffset[c] = (int)(start - windowStart);
+            chunkCount[c] = count;
+        }
+        if (!maps.isEmpty()) {
+            maps.set(maps.size() - 1, map(windowStart, windowEnd));
+        }
+        windows = maps.toArray(new MappedByteBuffer[0]);
+    }
+
+    /**
+     * Map a range of the file read only, little endian
+     */
+    private MappedByteBuffer map(long from, long to) throws IOException {
+        MappedByteBuffer m = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+        m.order(ByteOrder.LITTLE_ENDIAN);
+        return m;
+    }
+
+    /**
+     * View of a range of a chunk
+     */
+    private ByteBuffer slice(int c, int from) {
+        ByteBuffer b = windows[chunkWindow[c]].duplicate();
+        b.position(chunkOffset[c] + from);
+        return b.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Send every stored point to a sink, stopping early if it is done
+     * @param sink where the points are sent
+     */
+    public void replay(PointSink sink) {
+        for (int c = 0; c < chunkCount.length && !sink.isDone(); c++) {
+            int n = chunkCount[c];
+            int width = doublePrecision ? 8 : 4;
+            ShortBuffer ts = transforms ? slice(c, 8 + 2 * n * width).asShortBuffer() : null;
+            if (doublePrecision) {
+                DoubleBuffer xs = slice(c, 8).asDoubleBuffer();
+                DoubleBuffer ys = slice(c, 8 + n * width).asDoubleBuffer();
+                for (int k = 0; k < n; k++) {
+                    sink.accept(0, ts == null ? -1 : ts.get(k), xs.get(k), ys.get(k));
+                }
+            } else {
+                FloatBuffer xs = slice(c, 8).asFloatBuffer();
+                FloatBuffer ys = slice(c, 8 + n * width).asFloatBuffer();
+                for (int k = 0; k < n; k++) {
+                    sink.accept(0, ts == null ? -1 : ts.get(k), xs.get(k), ys.get(k));
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy every point into arrays, e.g. for <code> MinkowskiDimension </code>
+     * @return {xs, ys}
+     */
+    public double[][] readAll() {
+        if (points > Integer.MAX_VALUE) {
+            throw new RuntimeException("Too many points for arrays, replay them instead");
+        }
+        double[] xs = new double[(int) points];
+        double[] ys = new double[(int) points];
+        int[] n = new int[1];
+        replay((it, t, x, y) -> {
+                xs[n[0]] = x;
+                ys[n[0]] = y;
+                n[0]++;
+            });
+        return new double[][]{xs, ys};
+    }
+
+    /**
+     * Release the file
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * testing method, the dimension of a stored Sierpinski triangle
+     * @param args a point cloud file to read instead
+     */
+    public static void main(String args[]) throws IOException {
+        Path path;
+        if (args.length > 0) {
+            path = new File(args[0]).toPath();
+        } else {
+            Vector<Transform> transforms = new Vector<Transform>();
+            Matrix shrink = new Matrix(0.5, 0.0, 0.0, 0.5);
+            transforms.add(new AffineTransform(shrink, new Matrix(0.0, 0.0)));
+            transforms.add(new AffineTransform(shrink, new Matrix(0.5, 0.0)));
+            transforms.add(new AffineTransform(shrink, new Matrix(0.0, 0.5)));
+            IFS system = new IFS(transforms);
+            path = new File("sierpinski.points").toPath();
+            RandomIFSEvaluator ifsRunner = new RandomIFSEvaluator(system, 1000, 999);
+            ifsRunner.setBurnIn(20);
+            try (PointCloudWriter writer = PointCloudWriter.create(path, true, false)) {
+                ifsRunner.stream(writer);
+            }
+        }
+        try (PointCloudReader reader = PointCloudReader.open(path)) {
+            double[][] cloud = reader.readAll();
+            System.out.printf("%d points, %s%n", reader.points,
+                              new MinkowskiDimension(cloud[0], cloud[1]));
+        }
+    }
+}
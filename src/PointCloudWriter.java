@@ -0,0 +1,278 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Vector;
+
+/**
+ * Writes the points streamed from an evaluator to a compact binary file,
+ * so the cloud can later be replayed into an <code> Image </code> over any
+ * region, or analyzed, without evaluating the system again. Read with
+ * <code> PointCloudReader </code>.
+ * <p>
+ * Points are buffered and written in chunks. Within a chunk the x
+ * coordinates, the y coordinates and, if kept, the transform indices are
+ * stored one after the other, so a reader can view each as a primitive
+ * buffer without copying. Coordinates are float32 or float64. A chunk is
+ * only ever written whole, so a file cut short by a crash still reads up to
+ * its last complete chunk.
+ * <pre>
+ * offset  contents
+ *      0  magic "JIFSPNTS"
+ *      8  int version, int flags (1 float64, 2 transforms kept)
+ *     16  int chunkPoints, int reserved
+ *     24  long points, written on close
+ *     64  chunks: int count, int reserved,
+ *         x[count], y[count], short transform[count] if kept,
+ *         padded to a multiple of 8 bytes
+ * </pre>
+ * The writer can be forked for the parallel evaluator, each part fills
+ * its own chunks and writes them whole under a lock, so chunks from
+ * different threads interleave but points within a chunk do not.
+ * @author J. Marcus Hughes
+ * @see PointCloudReader
+ */
+public class PointCloudWriter implements PointSink, Closeable {
+    static final long MAGIC = 0x4a494653504e5453L; // "JIFSPNTS"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 64;
+    static final int DOUBLES = 1;     // flag, coordinates are float64
+    static final int TRANSFORMS = 2;  // flag, transform indices are kept
+    static final int CHUNK_POINTS = 1 << 16; // default points per chunk
+    boolean doublePrecision; // coordinates as float64 instead of float32
+    boolean transforms;      // whether transform indices are kept
+    int chunkPoints;         // most points in a chunk
+    long points;             // points written so far, over all parts
+    private final PointCloudWriter root; // owner of the file, this for the first part
+    private FileChannel channel;
+    private ByteBuffer chunk;   // the chunk being filled, little endian
+    private int count;          // points in the chunk being filled
+
+    /**
+     * A part writing into the file of <code> root </code>
+     */
+    private PointCloudWriter(PointCloudWriter root) {
+        this.root = root;
+        this.doublePrecision = root.doublePrecision;
+        this.transforms = root.transforms;
+        this.chunkPoints = root.chunkPoints;
+        this.channel = root.channel;
+        this.chunk = ByteBuffer.allocateDirect(chunkBytes(chunkPoints, doublePrecision, transforms))
+                               .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Bytes taken by a chunk, including its 8 byte header and padding
+     */
+    static int chunkBytes(int count, boolean doublePrecision, boolean transforms) {
+        long bytes = 8 + (long) count * (doublePrecision ? 16 : 8) + (transforms ? 2L * count : 0);
+        return (int)((bytes + 7) & ~7L);
+    }
+
+    /**
+     * Start a new point cloud in a file, replacing anything already there
+     * @param file where to write the points
+     * @param doublePrecision keep coordinates as float64, else float32
+     * @param transforms keep the index of the transform that produced each point
+     */
+    public static PointCloudWriter create(Path file, boolean doublePrecision, boolean transforms) {
+        return create(file, doublePrecision, transforms, CHUNK_POINTS);
+    }
+
+    /**
+     * Start a new point cloud in a file, replacing anything already there
+     * @param file where to write the points
+     * @param doublePrecision keep coordinates as float64, else float32
+     * @param transforms keep the index of the transform that produced each point
+     * @param chunkPoints most points buffered before a chunk is written
+     */
+    public static PointCloudWriter create(Path file, boolean doublePrecision, boolean transforms,
+                                          int chunkPoints) {
+        assert chunkPoints > 0 : "chunkPoints must be positive";
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                                       StandardOpenOption.WRITE,
+                                       StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not create " + file, e);
+        }
+        PointCloudWriter w = new PointCloudWriter(doublePrecision, transforms, chunkPoints, channel);
+        w.writeHeader();
+        return w;
+    }
+
+    /**
+     * The first part, owning the file
+     */
+    private PointCloudWriter(boolean doublePrecision, boolean transforms, int chunkPoints,
+                             FileChannel channel) {
+        this.root = this;
+        this.doublePrecision = doublePrecision;
+        this.transforms = transforms;
+        this.chunkPoints = chunkPoints;
+        this.channel = channel;
+        this.chunk = ByteBuffer.allocateDirect(chunkBytes(chunkPoints, doublePrecision, transforms))
+                               .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Write the header fields at the start of the file
+     */
+    private void writeHeader() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putLong(0, MAGIC);
+        header.putInt(8, VERSION);
+        header.putInt(12, (doublePrecision ? DOUBLES : 0) | (transforms ? TRANSFORMS : 0));
+        header.putInt(16, chunkPoints);
+        header.putLong(24, points);
+        try {
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write point cloud header", e);
+        }
+    }
+
+    /**
+     * Buffer a point, writing the chunk when it is full
+     * @see PointSink
+     */
+    public void accept(int iteration, int transform, double x, double y) {
+        int o = 8 + count * (doublePrecision ? 8 : 4);
+        int oy = o + chunkPoints * (doublePrecision ? 8 : 4);
+        if (doublePrecision) {
+            chunk.putDouble(o, x);
+            chunk.putDouble(oy, y);
+        } else {
+            chunk.putFloat(o, (float) x);
+            chunk.putFloat(oy, (float) y);
+        }
+        if (transforms) {
+            chunk.putShort(8 + 2 * chunkPoints * (doublePrecision ? 8 : 4) + 2 * count,
+                           (short) transform);
+        }
+        if (++count == chunkPoints) {
+            writeChunk();
+        }
+    }
+
+    /**
+     * Write the buffered points as one chunk. The arrays are laid out for
+     * a full chunk, a partial one is compacted first.
+     */
+    private void writeChunk() {
+        if (count == 0) {
+            return;
+        }
+        int width = doublePrecision ? 8 : 4;
+        ByteBuffer out = chunk;
+        if (count < chunkPoints) {
+            out = ByteBuffer.allocate(chunkBytes(count, doublePrecision, transforms))
+                            .order(ByteOrder.LITTLE_ENDIAN);
+            copy(chunk, 8, out, 8, count * width);
+            copy(chunk, 8 + chunkPoints * width, out, 8 + count * width, count * width);
+            if (transforms) {
+                copy(chunk, 8 + 2 * chunkPoints * width, out, 8 + 2 * count * width, 2 * count);
+            }
+        }
+        out.putInt(0, count);
+        out.putInt(4, 0);
+        out.clear();
+        try {
+            synchronized (root) {
+                while (out.hasRemaining()) {
+                    root.channel.write(out, root.channel.size());
+                }
+                root.points += count;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write point cloud chunk", e);
+        }
+        count = 0;
+    }
+
+    /**
+     * Copy a byte range between buffers without moving their positions
+     */
+    private static void copy(ByteBuffer from, int fromOffset, ByteBuffer to, int toOffset, int length) {
+        ByteBuffer src = from.duplicate();
+        src.limit(fromOffset + length).position(fromOffset);
+        ByteBuffer dst = to.duplicate();
+        dst.position(toOffset);
+        dst.put(src);
+    }
+
+    /**
+     * @return <code> true </code>, parts write whole chunks under a lock
+     * @see PointSink
+     */
+    public boolean canFork() {
+        return true;
+    }
+
+    /**
+     * @return a part with its own chunk buffer writing into the same file
+     * @see PointSink
+     */
+    public PointSink fork() {
+        return new PointCloudWriter(root);
+    }
+
+    /**
+     * Write out what a part still buffers
+     * @see PointSink
+     */
+    public void join(PointSink part) {
+        ((PointCloudWriter) part).writeChunk();
+    }
+
+    /**
+     * Write out the buffered points and the final point count, then
+     * release the file
+     */
+    public void close() throws IOException {
+        writeChunk();
+        if (root == this) {
+            writeHeader();
+            channel.force(true);
+            channel.close();
+        }
+    }
+
+    /**
+     * testing method, writes the Barnsley fern from several threads and
+     * replays it into an image
+     */
+    public static void main(String args[]) throws IOException {
+        Vector<Transform> transforms = new Vector<Transform>();
+        Vector<Double> probabilities = new Vector<Double>();
+        transforms.add(new AffineTransform(0.0, 0.0, 0.0, 0.16, 0.0, 0.0));
+        probabilities.add(0.01);
+        transforms.add(new AffineTransform(0.85, 0.04, -0.04, 0.85, 0.0, 1.6));
+        probabilities.add(0.85);
+        transforms.add(new AffineTransform(0.20, -0.26, 0.23, 0.22, 0.0, 1.6));
+        probabilities.add(0.07);
+        transforms.add(new AffineTransform(-0.15, 0.28, 0.26, 0.24, 0.0, 0.44));
+        probabilities.add(0.07);
+        IFS fern = new IFS(transforms, probabilities);
+        Path path = new File("fern.points").toPath();
+
+        ParallelIFSEvaluator ifsRunner = new ParallelIFSEvaluator(fern, 10000, 100, 42L);
+        ifsRunner.setBurnIn(20);
+        try (PointCloudWriter writer = PointCloudWriter.create(path, false, true)) {
+            ifsRunner.evaluate(writer);
+            System.out.printf("wrote %d points%n", writer.points);
+        }
+        try (PointCloudReader reader = PointCloudReader.open(path)) {
+            Bounds b = Bounds.of(fern).withAspect(500, 500);
+            Image img = new Image(500, 500, b.xmin, b.xmax, b.ymin, b.ymax);
+            img.setColors(fern);
+            reader.replay(img);
+            img.save("fern-points.jpg");
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * A consumer of points produced while evaluating an iterated function system.
+ * Evaluators push every point of every trajectory into a sink as soon as it
+ * is generated, so nothing has to be stored between generation and use.
+ * Points arrive one at a time or, from batched evaluators, a step of many
+ * walkers at a time. Sinks are chained with <code> SinkChain </code>.
+ * <p>
+ * To be fed from several threads a sink is forked, once per thread, and the
+ * parts are joined back at the end. Sinks that can be split override
+ * <code> canFork </code>, <code> fork </code> and <code> join </code>, e.g.
+ * a histogram forks an empty copy and merges it back; a thread safe sink
+ * can fork to itself. The parallel evaluator rejects sinks that cannot.
+ * A plain lambda cannot be split.
+ * @author J. Marcus Hughes
+ * @see IFSEvaluator
+ */
+interface PointSink {
+    /**
+     * receive a point of a trajectory
+     * @param iteration step of the trajectory, 0 is the starting point
+     * @param transform index in the <code> IFS </code> of the transform that
+     *        produced the point, -1 for the starting point
+     * @param x x coordinate of the point
+     * @param y y coordinate of the point
+     */
+    void accept(int iteration, int transform, double x, double y);
+
+    /**
+     * receive one step of many walkers
+     * @param iteration step of the trajectories, 0 is the starting points
+     * @param transforms index of the transform that produced each point, -1 for none
+     * @param xs x coordinates of the points
+     * @param ys y coordinates of the points
+     * @param count number of points, the first <code> count </code> entries are used
+     */
+    default void acceptBatch(int iteration, int[] transforms, double[] xs, double[] ys, int count) {
+        for (int i = 0; i < count; i++) {
+            accept(iteration, transforms[i], xs[i], ys[i]);
+        }
+    }
+
+    /**
+     * whether the sink can be fed from several threads with
+     * <code> fork </code> and <code> join </code>
+     * @return <code> false </code> unless the sink overrides the two
+     */
+    default boolean canFork() {
+        return false;
+    }
+
+    /**
+     * a sink for one more thread to feed, to be joined back when it is done
+     * @return a new empty part, or this sink if it is thread safe
+     */
+    default PointSink fork() {
+        throw new UnsupportedOperationException(getClass().getName()
+                                                + " cannot be fed from several threads");
+    }
+
+    /**
+     * combine a part made by <code> fork </code> back into this sink
+     * @param part a sink returned by <code> fork </code>
+     */
+    default void join(PointSink part) {
+        if (part != this) {
+            throw new UnsupportedOperationException(getClass().getName() + " cannot be joined");
+        }
+    }
+
+    /**
+     * whether the sink has seen enough, evaluators check this between
+     * trajectories and stop early once it is <code> true </code>
+     * @return <code> false </code> unless the sink wants no more points
+     */
+    default boolean isDone() {
+        return false;
+    }
+
+    /**
+     * Restrict a sink to a single iteration of every trajectory
+     * @param iteration the only step passed on
+     * @param sink where points of that step go
+     * @return a sink that ignores all other steps
+     */
+    static PointSink forIteration(int iteration, PointSink sink) {
+        return new IterationFilter(iteration, sink);
+    }
+
+    /**
+     * A sink passing on a single iteration, split whenever its target can be
+     */
+    class IterationFilter implements PointSink {
+        final int iteration; // the only step passed on
+        final PointSink sink; // where points of that step go
+
+        IterationFilter(int iteration, PointSink sink) {
+            this.iteration = iteration;
+            this.sink = sink;
+        }
+
+        public void accept(int it, int t, double x, double y) {
+            if (it == iteration) {
+                sink.accept(it, t, x, y);
+            }
+        }
+
+        public boolean isDone() {
+            return sink.isDone();
+        }
+
+        public boolean canFork() {
+            return sink.canFork();
+        }
+
+        public PointSink fork() {
+            return new IterationFilter(iteration, sink.fork());
+        }
+
+        public void join(PointSink part) {
+            sink.join(((IterationFilter) part).sink);
+        }
+    }
+}
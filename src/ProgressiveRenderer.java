@@ -0,0 +1,167 @@
+import java.util.Vector;
+
+/**
+ * Anytime rendering of an <code> IFS </code>: instead of sampling a fixed
+ * number of points and then plotting, points are added in rounds that
+ * double the total, first, 2 first, 4 first, ... starting points, and a
+ * snapshot can be taken after each round. After each round the histogram is
+ * normalized to sum to 1 and compared with the one of the round before;
+ * once the L1 distance between the two, half of it being the share of the
+ * mass that moved, drops below a threshold the image has stopped changing
+ * and the rendering stops. It also stops when a time budget runs out or
+ * the largest number of points is reached. To keep to the budget a round
+ * is run in slices of about <code> SLICE_SECONDS </code>, sized from the
+ * rate measured so far, and the deadline is checked between slices, so a
+ * long round is cut short instead of running to its end.
+ * The rounds are ranges of the starting points of a 
+ * <code> ParallelIFSEvaluator </code>, so the result after any round is
+ * exactly what a single run on that many points would give.
+ * @author J. Marcus Hughes
+ * @see ParallelIFSEvaluator
+ */
+public class ProgressiveRenderer {
+    static final double SLICE_SECONDS = 0.1; // time between checks of the deadline
+    ParallelIFSEvaluator evaluator; // samples the rounds
+    Histogram target;   // accumulates every round
+    int firstRound;     // starting points in the first round
+    double threshold;   // change below which the rendering stops
+    double seconds;     // time budget, infinite for none
+    int pointsDone;     // starting points sampled so far
+    int rounds;         // rounds run so far
+    double change;      // change in the last round, NaN before the second
+
+    /**
+     * Called with the histogram after every round
+     */
+    interface Snapshot {
+        /**
+         * @param target the histogram so far, only valid during the call
+         * @param points starting points sampled so far
+         * @param change L1 distance between this and the last normalized
+         *        histogram, NaN after the first round
+         */
+        void accept(Histogram target, int points, double change);
+    }
+
+    /**
+     * Set up a progressive rendering
+     * @param ifs an initialized iterated function system
+     * @param target histogram the points are counted into
+     * @param iterations how many iterations should be evaluated for each point
+     * @param seed makes the result deterministic
+     */
+    ProgressiveRenderer(IFS ifs, Histogram target, int iterations, long seed) {
+        this.evaluator = new ParallelIFSEvaluator(ifs, Integer.MAX_VALUE, iterations, seed);
+        this.target = target;
+        this.firstRound = 1024;
+        this.threshold = 1e-3;
+        this.seconds = Double.POSITIVE_INFINITY;
+        this.change = Double.NaN;
+    }
+
+    /**
+     * Change when the rendering stops
+     * @param firstRound starting points in the first round
+     * @param threshold change between rounds below which it has converged
+     * @param seconds time budget, the rendering stops within about a slice
+     *        of it running out
+     */
+    public void setStopping(int firstRound, double threshold, double seconds) {
+        assert firstRound > 0 : "firstRound must be positive";
+        this.firstRound = firstRound;
+        this.threshold = threshold;
+        this.seconds = seconds;
+    }
+
+    /**
+     * Run rounds until converged, out of time or out of points. A round
+     * cut short by the deadline still ends with a snapshot, of every
+     * starting point before <code> pointsDone </code>.
+     * @param maxPoints most starting points to sample in total
+     * @param snapshot called after every round, may be null
+     * @return whether it stopped because the histogram converged
+     */
+    public boolean run(int maxPoints, Snapshot snapshot) {
+        long deadline = System.nanoTime() + (long) Math.min(Long.MAX_VALUE / 2, seconds * 1e9);
+        long[] previous = target.counts.clone();
+        long previousTotal = target.total();
+        int next = Math.min(maxPoints, Math.max(firstRound, 2 * pointsDone));
+        int slice = next - pointsDone; // starting points per slice, unknown rate at first
+        while (pointsDone < maxPoints) {
+            boolean late = false;
+            while (pointsDone < next && !(late = System.nanoTime() > deadline)) {
+                int to = (int) Math.min(next, (long) pointsDone + slice);
+                long start = System.nanoTime();
+                evaluator.run(target, pointsDone, to);
+                double elapsed = Math.max(1e-6, (System.nanoTime() - start) / 1e9);
+                slice = (int) Math.max(ParallelIFSEvaluator.BLOCK_SIZE,
+                                       Math.min(Integer.MAX_VALUE, (to - pointsDone) / elapsed * SLICE_SECONDS));
+                pointsDone = to;
+            }
+            rounds++;
+            long total = target.total();
+            change = previousTotal == 0 ? Double.NaN : distance(previous, previousTotal, target.counts, total);
+            if (snapshot != null) {
+                snapshot.accept(target, pointsDone, change);
+            }
+            if (change < threshold) {
+                return true;
+            }
+            if (late || System.nanoTime() > deadline) {
+                return false;
+            }
+            System.arraycopy(target.counts, 0, previous, 0, previous.length);
+            previousTotal = total;
+            next = (int) Math.min(maxPoints, 2L * pointsDone);
+        }
+        return false;
+    }
+
+    /**
+     * L1 distance between two histograms each normalized to sum to 1
+     */
+    static double distance(long[] a, long totalA, long[] b, long totalB) {
+        if (totalB == 0) {
+            return Double.NaN;
+        }
+        double scaleA = 1.0 / totalA;
+        double scaleB = 1.0 / totalB;
+        double sum = 0.0;
+        for (int k = 0; k < a.length; k++) {
+            sum += Math.abs(a[k] * scaleA - b[k] * scaleB);
+        }
+        return sum;
+    }
+
+    /**
+     * testing main, the Barnsley fern saved after every round
+     */
+    public static void main(String[] args) {
+        Vector<Transform> transforms = new Vector<Transform>();
+        Vector<Double> probabilities = new Vector<Double>();
+        transforms.add(new AffineTransform(0.0, 0.0, 0.0, 0.16, 0.0, 0.0));
+        probabilities.add(0.01);
+        transforms.add(new AffineTransform(0.85, 0.04, -0.04, 0.85, 0.0, 1.6));
+        probabilities.add(0.85);
+        transforms.add(new AffineTransform(0.20, -0.26, 0.23, 0.22, 0.0, 1.6));
+        probabilities.add(0.07);
+        transforms.add(new AffineTransform(-0.15, 0.28, 0.26, 0.24, 0.0, 0.44));
+        probabilities.add(0.07);
+        IFS fern = new IFS(transforms, probabilities);
+
+        Bounds b = Bounds.of(fern).withAspect(500, 500);
+        Histogram h = new Histogram(500, 500, b.xmin, b.xmax, b.ymin, b.ymax);
+        h.setColors(fern);
+        ProgressiveRenderer renderer = new ProgressiveRenderer(fern, h, 100, 42L);
+        renderer.setStopping(1000, 0.02, 30.0);
+        long start = System.nanoTime();
+        boolean converged = renderer.run(10000000, (target, points, change) -> {
+                System.out.printf("%9d points %8.2f s change %.4f%n",
+                                  points, (System.nanoTime() - start) / 1e9, change);
+                Image img = new Image(500, 500, b.xmin, b.xmax, b.ymin, b.ymax);
+                img.plot(target);
+                img.save(String.format("progressive%02d.jpg", renderer.rounds));
+            });
+        System.out.println(converged ? "converged" : "stopped before converging");
+    }
+}
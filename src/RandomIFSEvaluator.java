@@ -1,4 +1,5 @@
 import java.io.*;
+import java.util.Arrays;
 import java.util.Vector;
 import java.awt.image.*;
 import javax.imageio.*;
@@ -11,12 +12,15 @@ import java.awt.Color;
  * This is a probabilistic approach. A set of random points is selected 
  * and iterated forward. These characterize the behavior of the iterated
  * function system without as much computational work. 
+ * Each walker can first take <code> burnIn </code> steps that are not
+ * reported, so only points already on the attractor are plotted; with a
+ * burn-in, fewer and longer walkers give more useful points for the work.
  * @author J. Marcus Hughes
  */
 public class RandomIFSEvaluator extends IFSEvaluator {
-    IFS ifs;
     int numPoints;
     int iterations;
+    int burnIn; // unreported steps each walker takes before its starting point
     Vector<Vector<Matrix>> results;
     /** Set up the random iterated function system evaluator
      * @param ifs an initialized iterated function system
@@ -33,10 +37,24 @@ public class RandomIFSEvaluator extends IFSEvaluator {
     }
 
     /**
-     * Simulate running on a single point
+     * Skip the transient at the start of every walk. Each walker takes this
+     * many steps before the point reported as its starting point, and the
+     * iterations are counted from there.
+     * @param burnIn steps not reported, 0 to report every step
+     */
+    public void setBurnIn(int burnIn) {
+        assert burnIn >= 0 : "burnIn must not be negative";
+        this.burnIn = burnIn;
+    }
+
+    /**
+     * Simulate running on a single point, after the burn-in
      * @param p the initial point
      */
     public Vector<Matrix> runPoint(Matrix p) {
+        for (int it = 0; it < this.burnIn; it++) {
+            p = ifs.chooseTransform().transform(p);
+        }
         Vector<Matrix> ps = new Vector<Matrix>();
         ps.add(p);
         for (int it = 0; it < this.iterations; it++) {
@@ -61,25 +79,130 @@ public class RandomIFSEvaluator extends IFSEvaluator {
     }
 
     /**
-     * Plot the IFS in region (-1.0, 1.0) x (-1.0, 1.0) for last iteration
+     * Stream every point into a sink
+     * @see IFSEvaluator
+     */
+    public void evaluate(PointSink sink) {
+        stream(sink);
+    }
+
+    /**
+     * Simulate running on many points without storing the trajectories.
+     * Every point, including the random starting point of each trajectory,
+     * is handed to <code> sink </code> as soon as it is computed so memory
+     * use does not depend on numPoints or iterations. Stops early if the
+     * sink reports it is done.
+     * @param sink where the points are sent
+     */
+    public void stream(PointSink sink) {
+        CompiledIFS system = ifs.compile();
+        double[] p = new double[2];
+        for (int n = 0; n < this.numPoints && !sink.isDone(); n++) {
+            Matrix start = Matrix.randomPoint();
+            p[0] = start.get(1,1);
+            p[1] = start.get(2,1);
+            for (int it = 0; it < this.burnIn; it++) {
+                system.apply(system.chooseIndex(Math.random()), p);
+            }
+            sink.accept(0, -1, p[0], p[1]);
+            for (int it = 1; it <= this.iterations; it++) {
+                int i = system.chooseIndex(Math.random());
+                system.apply(i, p);
+                sink.accept(it, i, p[0], p[1]);
+            }
+        }
+    }
+
+    /**
+     * Simulate running on many points without storing the trajectories,
+     * advancing <code> batch </code> walkers together. Each step the walkers
+     * are grouped by the transform they chose and every transform moves its
+     * whole group in one call, instead of one virtual call per point, and
+     * the sink receives the step of all walkers in one batch.
+     * Stops early if the sink reports it is done.
+     * @param sink where the points are sent
+     * @param batch how many walkers advance together
+     */
+    public void stream(PointSink sink, int batch) {
+        CompiledIFS system = ifs.compile();
+        double[] xs = new double[batch];
+        double[] ys = new double[batch];
+        int[] chosen = new int[batch];          // transform chosen by each walker
+        int[] index = new int[batch];           // walkers sorted by transform
+        int[] start = new int[system.size + 1]; // where each group begins
+        int[] next = new int[system.size];      // fill position of each group
+        for (int first = 0; first < this.numPoints && !sink.isDone(); first += batch) {
+            int n = Math.min(batch, this.numPoints - first);
+            for (int i = 0; i < n; i++) {
+                Matrix p = Matrix.randomPoint();
+                xs[i] = p.get(1,1);
+                ys[i] = p.get(2,1);
+            }
+            for (int it = 0; it < this.burnIn; it++) {
+                step(system, xs, ys, n, chosen, index, start, next);
+            }
+            Arrays.fill(chosen, 0, n, -1);
+            sink.acceptBatch(0, chosen, xs, ys, n);
+            for (int it = 1; it <= this.iterations; it++) {
+                step(system, xs, ys, n, chosen, index, start, next);
+                sink.acceptBatch(it, chosen, xs, ys, n);
+            }
+        }
+    }
+
+    /**
+     * Advance a batch of walkers one step, grouped by chosen transform
+     * @param system the compiled IFS
+     * @param xs x coordinates of the walkers
+     * @param ys y coordinates of the walkers
+     * @param n number of walkers
+     * @param chosen receives the transform chosen by each walker
+     * @param index scratch, the walkers sorted by transform
+     * @param start scratch, where each group begins
+     * @param next scratch, fill position of each group
+     */
+    private static void step(CompiledIFS system, double[] xs, double[] ys, int n,
+                             int[] chosen, int[] index, int[] start, int[] next) {
+        // counting sort of the walkers by chosen transform
+        Arrays.fill(start, 0);
+        for (int i = 0; i < n; i++) {
+            chosen[i] = system.chooseIndex(Math.random());
+            start[chosen[i] + 1]++;
+        }
+        for (int t = 0; t < system.size; t++) {
+            start[t + 1] += start[t];
+            next[t] = start[t];
+        }
+        for (int i = 0; i < n; i++) {
+            index[next[chosen[i]]++] = i;
+        }
+        for (int t = 0; t < system.size; t++) {
+            system.apply(t, xs, ys, index, start[t], start[t + 1]);
+        }
+    }
+
+    /**
+     * Plot the IFS over its attractor for last iteration
      * @param filename where to save image
      * @param width number of pixels wide for image
      * @param height number of pixels high for image
      */
     public void plot(String filename, int width, int height) {
-        plot(filename, width, height, iterations, -1.0, 1.0, -1.0, 1.0);
+        Bounds b = fit(width, height);
+        plot(filename, width, height, iterations, b.xmin, b.xmax, b.ymin, b.ymax);
     }
 
     /**
-     * Plot the IFS in region (-1.0, 1.0) x (-1.0, 1.0) for requested iteration
+     * Plot the IFS over its attractor for requested iteration
      * @param filename where to save image
      * @param width number of pixels wide for image
      * @param height number of pixels high for image
      * @param iteration step to plot
      */
     public void plot(String filename, int width, int height, int iteration) {
-        assert iteration < iterations : "not a valid iteration number";
-        plot(filename, width, height, iteration, -1.0, 1.0, -1.0, 1.0);
+        assert iteration >= 0 && iteration <= iterations : "not a valid iteration number";
+        Bounds b = fit(width, height);
+        plot(filename, width, height, iteration, b.xmin, b.xmax, b.ymin, b.ymax);
     }
 
     /**
@@ -95,15 +218,99 @@ public class RandomIFSEvaluator extends IFSEvaluator {
      */
     public void plot(String filename, int width, int height, int iteration,
                      double xmin, double xmax, double ymin, double ymax) {
-        assert iteration < iterations : "not a valid iteration number";
-        Image img = new Image(width, height, xmin, xmax, ymin, ymax);
-        Vector<Vector<Matrix>> results = run();
-        for(Vector<Matrix> r: results) {            
-            img.plot(r.get(iteration));
-        }
+        assert iteration >= 0 && iteration <= iterations : "not a valid iteration number";
+        Image img = renderFrames(width, height, new int[]{iteration},
+                                 xmin, xmax, ymin, ymax)[0];
         img.save(filename);
     }
 
+    /**
+     * Plot many iterations of the IFS over its attractor
+     * @param pattern format string for the filenames, given the iteration, 
+     *        e.g. "imgs/trial%03d.jpeg"
+     * @param width number of pixels wide for each image
+     * @param height number of pixels high for each image
+     * @param frames steps to plot, one image each
+     */
+    public void plotFrames(String pattern, int width, int height, int[] frames) {
+        Bounds b = fit(width, height);
+        plotFrames(pattern, width, height, frames, b.xmin, b.xmax, b.ymin, b.ymax);
+    }
+
+    /**
+     * Region covering the attractor with the aspect ratio of the image
+     * @param width number of pixels wide for image
+     * @param height number of pixels high for image
+     * @see Bounds
+     */
+    private Bounds fit(int width, int height) {
+        return Bounds.of(ifs).withAspect(width, height);
+    }
+
+    /**
+     * Plot many iterations of the IFS in requested region. All frames are
+     * filled in one pass over the trajectories.
+     * @param pattern format string for the filenames, given the iteration, 
+     *        e.g. "imgs/trial%03d.jpeg"
+     * @param width number of pixels wide for each image
+     * @param height number of pixels high for each image
+     * @param frames steps to plot, one image each
+     * @param xmin least x value to show
+     * @param xmax greatest x value to show
+     * @param ymin least y value to show
+     * @param ymax greatest y value to show
+     */
+    public void plotFrames(String pattern, int width, int height, int[] frames,
+                           double xmin, double xmax, double ymin, double ymax) {
+        Image[] imgs = renderFrames(width, height, frames, xmin, xmax, ymin, ymax);
+        for (int k = 0; k < frames.length; k++) {
+            imgs[k].save(String.format(pattern, frames[k]));
+        }
+    }
+
+    /**
+     * Fill one image per requested iteration in a single pass. Uses the 
+     * stored <code> results </code> if <code> run() </code> has been called,
+     * otherwise streams new trajectories without storing them.
+     * @param width number of pixels wide for each image
+     * @param height number of pixels high for each image
+     * @param frames steps to plot
+     * @param xmin least x value to show
+     * @param xmax greatest x value to show
+     * @param ymin least y value to show
+     * @param ymax greatest y value to show
+     * @return image for each entry of <code> frames </code>
+     */
+    private Image[] renderFrames(int width, int height, int[] frames,
+                                 double xmin, double xmax, double ymin, double ymax) {
+        Image[] byIteration = new Image[iterations + 1];
+        Image[] imgs = new Image[frames.length];
+        for (int k = 0; k < frames.length; k++) {
+            assert frames[k] >= 0 && frames[k] <= iterations : "not a valid iteration number";
+            if (byIteration[frames[k]] == null) {
+                byIteration[frames[k]] = new Image(width, height, xmin, xmax, ymin, ymax);
+            }
+            imgs[k] = byIteration[frames[k]];
+        }
+
+        if (this.results != null) {
+            for (Vector<Matrix> r : this.results) {
+                for (int it = 0; it < r.size(); it++) {
+                    if (byIteration[it] != null) {
+                        byIteration[it].plot(r.get(it));
+                    }
+                }
+            }
+        } else {
+            stream((it, t, x, y) -> {
+                    if (byIteration[it] != null) {
+                        byIteration[it].plot(x, y);
+                    }
+                });
+        }
+        return imgs;
+    }
+
     
     /** 
      * testing main
@@ -158,13 +365,12 @@ public class RandomIFSEvaluator extends IFSEvaluator {
         IFS system = new IFS(transforms, probabilities);
 
         RandomIFSEvaluator ifsRunner = new RandomIFSEvaluator(system, 10000, 100);
-        ifsRunner.run();
-        System.out.println("FINISHED RUNNING!");
-        for (int i = 0; i < 100; i+=1){
-            System.out.println(i);
-            String fn = String.format("imgs/trial%03d.jpeg", i, 0.0, 3.0, 0.0, 3.0);
-            ifsRunner.plot(fn, 500, 500, i);
+        int[] frames = new int[100];
+        for (int i = 0; i < frames.length; i+=1){
+            frames[i] = i;
         }
+        ifsRunner.plotFrames("imgs/trial%03d.jpeg", 500, 500, frames);
+        System.out.println("FINISHED RUNNING!");
     }
     
 }
@@ -0,0 +1,72 @@
+/**
+ * Several <code> PointSink </code>s fed from one evaluator, e.g. a histogram,
+ * a dimension estimator and a file writer at once. Every point and batch
+ * goes to each sink in order. The chain is done as soon as any of its sinks
+ * is, and forks and joins sink by sink, so it can be used with the parallel
+ * evaluator whenever all of its sinks can.
+ * @author J. Marcus Hughes
+ */
+class SinkChain implements PointSink {
+    final PointSink[] sinks;
+
+    /**
+     * Chain sinks together
+     * @param sinks where every point is sent, in order
+     */
+    SinkChain(PointSink... sinks) {
+        this.sinks = sinks.clone();
+    }
+
+    /**
+     * Chain sinks together, a single sink is returned as is
+     * @param sinks where every point is sent, in order
+     */
+    static PointSink of(PointSink... sinks) {
+        return sinks.length == 1 ? sinks[0] : new SinkChain(sinks);
+    }
+
+    public void accept(int iteration, int transform, double x, double y) {
+        for (PointSink s : sinks) {
+            s.accept(iteration, transform, x, y);
+        }
+    }
+
+    public void acceptBatch(int iteration, int[] transforms, double[] xs, double[] ys, int count) {
+        for (PointSink s : sinks) {
+            s.acceptBatch(iteration, transforms, xs, ys, count);
+        }
+    }
+
+    public boolean isDone() {
+        for (PointSink s : sinks) {
+            if (s.isDone()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean canFork() {
+        for (PointSink s : sinks) {
+            if (!s.canFork()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public PointSink fork() {
+        PointSink[] parts = new PointSink[sinks.length];
+        for (int i = 0; i < sinks.length; i++) {
+            parts[i] = sinks[i].fork();
+        }
+        return new SinkChain(parts);
+    }
+
+    public void join(PointSink part) {
+        SinkChain chain = (SinkChain) part;
+        for (int i = 0; i < sinks.length; i++) {
+            sinks[i].join(chain.sinks[i]);
+        }
+    }
+}
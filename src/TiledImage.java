@@ -0,0 +1,385 @@
+import java.awt.image.*;
+import javax.imageio.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Vector;
+
+/**
+ * An image too large to hold in a single <code> BufferedImage </code>.
+ * The density is counted in square tiles kept outside of the Java heap,
+ * either in direct buffers or in a memory mapped file, and every tile is
+ * tone mapped and written to its own file. Only one tile of pixels is on
+ * the heap at a time, so heap use depends on the tile size and not on the
+ * size of the output. Direct buffers are allocated as points first reach a
+ * tile, but the counts of every tile reached are held until the image is
+ * saved, so direct mode is for outputs whose counts fit in memory, at most
+ * <code> DIRECT_LIMIT </code> bytes. Large outputs use a mapped file, whose
+ * tiles the operating system pages in and out as needed.
+ * Each output pixel can be supersampled: points are counted on a grid
+ * <code> supersample </code> times finer in each direction and filtered
+ * down when the tile is written.
+ * @author J. Marcus Hughes
+ */
+public class TiledImage implements PointSink {
+    static final long DIRECT_LIMIT = 1L << 31; // most bytes of counts held in direct buffers
+    /**
+     * How supersampled counts are combined into an output pixel
+     */
+    enum Filter {
+        BOX,      // plain average of the samples inside the pixel
+        GAUSSIAN  // gaussian weighted average reaching into neighboring pixels
+    }
+
+    double xmin; // least allowed x value
+    double xmax; // most allowed x value
+    double ymin; // least allowed y value
+    double ymax; // most allowed y value
+    int width;   // width of output in pixels
+    int height;  // height of output in pixels
+    int tileSize;    // output pixels per side of a tile
+    int supersample; // samples per side of an output pixel
+    int tilesX;      // number of tiles across
+    int tilesY;      // number of tiles down
+    double gamma;    // gamma correction applied to the log density
+    Filter filter;   // how samples are downsampled
+    private int side;    // samples per side of a tile
+    private double dxpp; // amount of x movement per sample
+    private double dypp; // amount of y movement per sample
+    private ByteBuffer[] storage; // backing memory of each tile
+    private LongBuffer[] tiles;   // counts per sample of each tile, row by row
+
+    /**
+     * Constructs an image with tiles kept in direct, off-heap, buffers,
+     * allocated when the first point lands in them. For small outputs
+     * only, see <code> DIRECT_LIMIT </code>.
+     * @param width pixels wide the output is
+     * @param height pixels high the output is
+     * @param xmin least x value to show
+     * @param xmax greatest x value to show
+     * @param ymin least y value to show
+     * @param ymax greatest y value to show
+     * @param tileSize pixels per side of a tile
+     * @param supersample samples per side of a pixel, 1 to turn off
+     */
+    public TiledImage(int width, int height,
+                      double xmin, double xmax,
+                      double ymin, double ymax,
+                      int tileSize, int supersample) {
+        setup(width, height, xmin, xmax, ymin, ymax, tileSize, supersample);
+        long total = tileBytes() * tiles.length;
+        if (total > DIRECT_LIMIT) {
+            throw new RuntimeException(String.format("%d bytes of counts is too many for direct buffers, "
+                                                     + "use the constructor with a file", total));
+        }
+    }
+
+    /**
+     * Constructs an image with tiles kept in a memory mapped file, so the
+     * operating system decides which tiles stay resident
+     * @param width pixels wide the output is
+     * @param height pixels high the output is
+     * @param xmin least x value to show
+     * @param xmax greatest x value to show
+     * @param ymin least y value to show
+     * @param ymax greatest y value to show
+     * @param tileSize pixels per side of a tile
+     * @param supersample samples per side of a pixel, 1 to turn off
+     * @param file where the counts are stored, created if missing
+     */
+    public TiledImage(int width, int height,
+                      double xmin, double xmax,
+                      double ymin, double ymax,
+                      int tileSize, int supersample, Path file) {
+        setup(width, height, xmin, xmax, ymin, ymax, tileSize, supersample);
+        long bytes = tileBytes();
+        try (FileChannel channel = FileChannel.open(file,
+                                                    StandardOpenOption.CREATE,
+                                                    StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+            for (int t = 0; t < tiles.length; t++) {
+                storage[t] = channel.map(FileChannel.MapMode.READ_WRITE, t * bytes, bytes)
+                    .order(ByteOrder.nativeOrder());
+                tiles[t] = storage[t].asLongBuffer();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not map " + file, e);
+        }
+    }
+
+    /**
+     * Shared part of the constructors
+     */
+    private void setup(int width, int height,
+                       double xmin, double xmax,
+                       double ymin, double ymax,
+                       int tileSize, int supersample) {
+        assert xmin < xmax : "xmin should be less than xmax";
+        assert ymin < ymax : "ymin should be less than ymax";
+        assert tileSize > 0 && supersample > 0 : "tileSize and supersample must be positive";
+        this.xmin = xmin;
+        this.xmax = xmax;
+        this.ymin = ymin;
+        this.ymax = ymax;
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.supersample = supersample;
+        this.gamma = 2.2;
+        this.filter = Filter.BOX;
+        this.side = tileSize * supersample;
+        this.tilesX = (width + tileSize - 1) / tileSize;
+        this.tilesY = (height + tileSize - 1) / tileSize;
+        this.dxpp = (double) width * supersample / (xmax - xmin);
+        this.dypp = (double) height * supersample / (ymax - ymin);
+        this.storage = new ByteBuffer[tilesX * tilesY];
+        this.tiles = new LongBuffer[tilesX * tilesY];
+        tileBytes();
+    }
+
+    /**
+     * Bytes of counts in one tile, which must fit a single buffer
+     */
+    private long tileBytes() {
+        long bytes = 8L * side * side;
+        if (bytes > Integer.MAX_VALUE) {
+            throw new RuntimeException(String.format("Tile of %d by %d samples is too large for a buffer, "
+                                                     + "lower tileSize or supersample", side, side));
+        }
+        return bytes;
+    }
+
+    /**
+     * The counts of a tile, allocating a direct buffer the first time
+     * @param t index of the tile
+     */
+    private LongBuffer tile(int t) {
+        LongBuffer tile = tiles[t];
+        if (tile == null) {
+            storage[t] = ByteBuffer.allocateDirect((int) tileBytes()).order(ByteOrder.nativeOrder());
+            tile = storage[t].asLongBuffer();
+            tiles[t] = tile;
+        }
+        return tile;
+    }
+
+    /**
+     * Change the gamma correction, larger values brighten sparse regions
+     * @param gamma exponent applied as brightness^(1/gamma)
+     */
+    public void setGamma(double gamma) {
+        assert gamma > 0 : "gamma must be positive";
+        this.gamma = gamma;
+    }
+
+    /**
+     * Choose how samples are combined into pixels
+     * @param filter downsampling filter
+     */
+    public void setFilter(Filter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Given a point as coordinates, plot it.
+     * If not in plotting range does nothing.
+     * @param x x coordinate of the point
+     * @param y y coordinate of the point
+     */
+    public void plot(double x, double y) {
+        if (x > xmin && x < xmax && y > ymin && y < ymax) {
+            int sx = (int)((x - xmin) * dxpp);
+            int sy = (int)((y - ymin) * dypp);
+            int tx = sx / side;
+            int ty = sy / side;
+            LongBuffer tile = tile(ty * tilesX + tx);
+            int k = (sy - ty * side) * side + (sx - tx * side);
+            tile.put(k, tile.get(k) + 1);
+        }
+    }
+
+    /**
+     * Plots every point streamed from an evaluator
+     * @see PointSink
+     */
+    public void accept(int iteration, int transform, double x, double y) {
+        plot(x, y);
+    }
+
+    /**
+     * Count at a sample anywhere in the image, zero outside of it
+     * @param sx sample column
+     * @param sy sample row
+     */
+    private long sample(int sx, int sy) {
+        if (sx < 0 || sy < 0 || sx >= width * supersample || sy >= height * supersample) {
+            return 0;
+        }
+        int tx = sx / side;
+        int ty = sy / side;
+        LongBuffer tile = tiles[ty * tilesX + tx];
+        return tile == null ? 0 : tile.get((sy - ty * side) * side + (sx - tx * side));
+    }
+
+    /**
+     * One dimensional filter weights, starting at the pixel for box. For
+     * gaussian the window reaches (s + 1) / 2 samples past each side of
+     * the s samples of the pixel, so it is symmetric about the pixel center
+     * for odd s as well as even.
+     */
+    private double[] weights() {
+        int s = supersample;
+        if (filter == Filter.BOX || s == 1) {
+            double[] w = new double[s];
+            Arrays.fill(w, 1.0 / s);
+            return w;
+        }
+        int offset = (s + 1) / 2;
+        double[] w = new double[s + 2 * offset];
+        double sigma = s / 2.0;
+        double total = 0.0;
+        for (int k = 0; k < w.length; k++) {
+            double d = (k + 0.5) - offset - s / 2.0; // distance from the pixel center in samples
+            w[k] = Math.exp(-d * d / (2 * sigma * sigma));
+            total += w[k];
+        }
+        for (int k = 0; k < w.length; k++) {
+            w[k] /= total;
+        }
+        return w;
+    }
+
+    /**
+     * Filtered density of an output pixel
+     * @param i pixel column
+     * @param j pixel row
+     * @param w filter weights from <code> weights() </code>
+     */
+    private double value(int i, int j, double[] w) {
+        int s = supersample;
+        if (s == 1) {
+            return sample(i, j);
+        }
+        int offset = (w.length - s) / 2;
+        int x0 = i * s - offset;
+        int y0 = j * s - offset;
+        double v = 0.0;
+        for (int b = 0; b < w.length; b++) {
+            double row = 0.0;
+            for (int a = 0; a < w.length; a++) {
+                row += w[a] * sample(x0 + a, y0 + b);
+            }
+            v += w[b] * row;
+        }
+        return v;
+    }
+
+    /**
+     * Brightest pixel under the box filter, found in a single pass over the
+     * samples of every tile. It sets the scale of the tone mapping: it is
+     * the exact brightest pixel for the box filter, and for the gaussian,
+     * which is too costly to evaluate twice per pixel, a close stand-in,
+     * with anything brighter shown at full brightness.
+     */
+    private double maxAverage() {
+        double[] sums = new double[tileSize * tileSize];
+        double max = 0.0;
+        for (int t = 0; t < tiles.length; t++) {
+            LongBuffer tile = tiles[t];
+            if (tile == null) {
+                continue;
+            }
+            Arrays.fill(sums, 0.0);
+            for (int sy = 0; sy < side; sy++) {
+                int row = (sy / supersample) * tileSize;
+                for (int sx = 0; sx < side; sx++) {
+                    sums[row + sx / supersample] += tile.get(sy * side + sx);
+                }
+            }
+            for (double sum : sums) {
+                max = Math.max(max, sum);
+            }
+        }
+        return max / ((double) supersample * supersample);
+    }
+
+    /**
+     * Tone map every tile and write each to its own file, named
+     * <code> prefix_ROW_COLUMN.format </code>
+     * @param prefix start of every filename
+     * @param format any format <code> ImageIO </code> can write, e.g. "png"
+     */
+    public void save(String prefix, String format) {
+        double[] w = weights();
+
+        double logMax = Math.log1p(maxAverage());
+
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                int tw = Math.min(tileSize, width - tx * tileSize);
+                int th = Math.min(tileSize, height - ty * tileSize);
+                BufferedImage img = new BufferedImage(tw, th, BufferedImage.TYPE_INT_RGB);
+                int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+                for (int j = 0; j < th; j++) {
+                    for (int i = 0; i < tw; i++) {
+                        double v = Math.min(1.0, Image.brightness(value(tx * tileSize + i, ty * tileSize + j, w),
+                                                                  logMax, gamma));
+                        pixels[j * tw + i] = Image.shade(v, 255, 255, 255);
+                    }
+                }
+                String filename = String.format("%s_%03d_%03d.%s", prefix, ty, tx, format);
+                try {
+                    ImageIO.write(img, format, new File(filename));
+                } catch (IOException e) {
+                    throw new RuntimeException("Could not write " + filename, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Make sure counts in a memory mapped file are written to disk
+     */
+    public void flush() {
+        for (ByteBuffer b : storage) {
+            if (b instanceof MappedByteBuffer) {
+                ((MappedByteBuffer) b).force();
+            }
+        }
+    }
+
+    /**
+     * testing method, renders the Sierpinski triangle in tiles
+     */
+    public static void main(String args[]) {
+        Vector<Transform> transforms = new Vector<Transform>();
+        Matrix shrink = new Matrix(0.5, 0.0, 0.0, 0.5);
+        transforms.add(new AffineTransform(shrink, new Matrix(0.0, 0.0)));
+        transforms.add(new AffineTransform(shrink, new Matrix(0.5, 0.0)));
+        transforms.add(new AffineTransform(shrink, new Matrix(0.0, 0.5)));
+        IFS system = new IFS(transforms);
+
+        TiledImage img = new TiledImage(2000, 2000, 0.0, 1.0, 0.0, 1.0, 512, 2);
+        img.setFilter(Filter.GAUSSIAN);
+        new RandomIFSEvaluator(system, 10000, 1000).stream(img);
+        img.save("sierpinski", "png");
+
+        // with an odd supersample the gaussian window must still be centered on the pixel
+        TiledImage odd = new TiledImage(10, 10, 0.0, 1.0, 0.0, 1.0, 10, 3);
+        odd.setFilter(Filter.GAUSSIAN);
+        double[] w = odd.weights();
+        for (int k = 0; k < w.length; k++) {
+            assert Math.abs(w[k] - w[w.length - 1 - k]) < 1e-15 : "gaussian window not symmetric";
+        }
+        // a point in the middle of pixel (4, 6) is brightest there
+        odd.plot(0.45, 0.65);
+        assert odd.value(4, 6, w) > odd.value(3, 6, w) && odd.value(4, 6, w) > odd.value(5, 6, w)
+            && odd.value(3, 6, w) == odd.value(5, 6, w) : "filtered point off center";
+    }
+}
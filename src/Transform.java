@@ -50,7 +50,43 @@ abstract class Transform {
      * @param p starting point
      * @return location after starting from <code> p </code> 
      */
-    abstract public Matrix transform(Matrix p);
+    public Matrix transform(Matrix p) {
+        double[] out = new double[2];
+        apply(p.get(1,1), p.get(2,1), out);
+        return new Matrix(out[0], out[1]);
+    }
+
+    /**
+     * allocation free version of <code> transform </code> 
+     * @param x x coordinate of the starting point
+     * @param y y coordinate of the starting point
+     * @param out buffer of length at least 2 receiving the new {x, y}
+     */
+    abstract public void apply(double x, double y, double[] out);
+
+    /**
+     * allocation free version of <code> transform </code> on parallel arrays,
+     * the point at index <code> i </code> is moved in place
+     * @param xs x coordinates
+     * @param ys y coordinates
+     * @param i index of the point to move
+     */
+    abstract public void apply(double[] xs, double[] ys, int i);
+
+    /**
+     * batch version of <code> apply </code>, moves in place every point
+     * whose index is in <code> index[from] </code> up to <code> index[to - 1] </code>
+     * @param xs x coordinates
+     * @param ys y coordinates
+     * @param index positions in <code> xs </code> and <code> ys </code> to move
+     * @param from first entry of <code> index </code> to use
+     * @param to one past the last entry of <code> index </code> to use
+     */
+    public void apply(double[] xs, double[] ys, int[] index, int from, int to) {
+        for (int k = from; k < to; k++) {
+            apply(xs, ys, index[k]);
+        }
+    }
 
     /**
      * simple string method
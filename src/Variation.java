@@ -0,0 +1,149 @@
+/**
+ * The nonlinear functions of the fractal flame algorithm, Draves and
+ * Reckase, "The Fractal Flame Algorithm". A <code> VariationTransform </code>
+ * applies an affine map and then a weighted sum of these.
+ * All are evaluated by the single switch in <code> apply </code>, so a 
+ * system using many of them still has one call site in the inner loop
+ * instead of one virtual method per function. With r the distance from the
+ * origin and theta = atan2(x, y), the angle from the y axis as in the paper:
+ * <ul>
+ * <li> LINEAR       (x, y)
+ * <li> SINUSOIDAL   (sin x, sin y)
+ * <li> SPHERICAL    (x, y) / r^2
+ * <li> SWIRL        (x sin r^2 - y cos r^2, x cos r^2 + y sin r^2)
+ * <li> HORSESHOE    ((x - y)(x + y), 2xy) / r
+ * <li> POLAR        (theta / pi, r - 1)
+ * <li> HANDKERCHIEF r (sin(theta + r), cos(theta - r))
+ * <li> HEART        r (sin(theta r), -cos(theta r))
+ * <li> DISC         theta / pi (sin(pi r), cos(pi r))
+ * <li> SPIRAL       (cos theta + sin r, sin theta - cos r) / r
+ * <li> HYPERBOLIC   (sin theta / r, r cos theta)
+ * <li> DIAMOND      (sin theta cos r, cos theta sin r)
+ * <li> BENT         (2x if x &lt; 0, y / 2 if y &lt; 0)
+ * <li> FISHEYE      2 (y, x) / (r + 1)
+ * <li> EXPONENTIAL  e^(x - 1) (cos(pi y), sin(pi y))
+ * <li> COSINE       (cos(pi x) cosh y, -sin(pi x) sinh y)
+ * </ul>
+ * @author J. Marcus Hughes
+ * @see VariationTransform
+ */
+enum Variation {
+    LINEAR, SINUSOIDAL, SPHERICAL, SWIRL, HORSESHOE, POLAR, HANDKERCHIEF, HEART,
+    DISC, SPIRAL, HYPERBOLIC, DIAMOND, BENT, FISHEYE, EXPONENTIAL, COSINE;
+
+    static final double EPS = 1e-10; // keeps divisions by r finite at the origin
+
+    /**
+     * Add a weighted variation of a point to a running sum
+     * @param v the variation
+     * @param w its weight
+     * @param x x coordinate, after the affine part
+     * @param y y coordinate, after the affine part
+     * @param sum {x, y} the result is added to
+     */
+    static void apply(Variation v, double w, double x, double y, double[] sum) {
+        apply(v, w, x, y, sum, 0, sum, 1);
+    }
+
+    /**
+     * Add a weighted variation of a point to a running sum held in two
+     * array entries, so points in parallel arrays can be moved in place
+     * @param v the variation
+     * @param w its weight
+     * @param x x coordinate, after the affine part
+     * @param y y coordinate, after the affine part
+     * @param xs array holding the x sum
+     * @param ix index of the x sum
+     * @param ys array holding the y sum
+     * @param iy index of the y sum
+     */
+    static void apply(Variation v, double w, double x, double y,
+                      double[] xs, int ix, double[] ys, int iy) {
+        double r2, r, theta, s, c;
+        switch (v) {
+            case LINEAR:
+                xs[ix] += w * x;
+                ys[iy] += w * y;
+                break;
+            case SINUSOIDAL:
+                xs[ix] += w * Math.sin(x);
+                ys[iy] += w * Math.sin(y);
+                break;
+            case SPHERICAL:
+                r2 = w / (x * x + y * y + EPS);
+                xs[ix] += r2 * x;
+                ys[iy] += r2 * y;
+                break;
+            case SWIRL:
+                r2 = x * x + y * y;
+                s = Math.sin(r2);
+                c = Math.cos(r2);
+                xs[ix] += w * (x * s - y * c);
+                ys[iy] += w * (x * c + y * s);
+                break;
+            case HORSESHOE:
+                r = w / (Math.sqrt(x * x + y * y) + EPS);
+                xs[ix] += r * (x - y) * (x + y);
+                ys[iy] += r * 2 * x * y;
+                break;
+            case POLAR:
+                xs[ix] += w * Math.atan2(x, y) / Math.PI;
+                ys[iy] += w * (Math.sqrt(x * x + y * y) - 1);
+                break;
+            case HANDKERCHIEF:
+                r = Math.sqrt(x * x + y * y);
+                theta = Math.atan2(x, y);
+                xs[ix] += w * r * Math.sin(theta + r);
+                ys[iy] += w * r * Math.cos(theta - r);
+                break;
+            case HEART:
+                r = Math.sqrt(x * x + y * y);
+                theta = Math.atan2(x, y) * r;
+                xs[ix] += w * r * Math.sin(theta);
+                ys[iy] -= w * r * Math.cos(theta);
+                break;
+            case DISC:
+                r = Math.PI * Math.sqrt(x * x + y * y);
+                theta = w * Math.atan2(x, y) / Math.PI;
+                xs[ix] += theta * Math.sin(r);
+                ys[iy] += theta * Math.cos(r);
+                break;
+            case SPIRAL:
+                r = Math.sqrt(x * x + y * y) + EPS;
+                theta = Math.atan2(x, y);
+                xs[ix] += w * (Math.cos(theta) + Math.sin(r)) / r;
+                ys[iy] += w * (Math.sin(theta) - Math.cos(r)) / r;
+                break;
+            case HYPERBOLIC:
+                r = Math.sqrt(x * x + y * y) + EPS;
+                theta = Math.atan2(x, y);
+                xs[ix] += w * Math.sin(theta) / r;
+                ys[iy] += w * r * Math.cos(theta);
+                break;
+            case DIAMOND:
+                r = Math.sqrt(x * x + y * y);
+                theta = Math.atan2(x, y);
+                xs[ix] += w * Math.sin(theta) * Math.cos(r);
+                ys[iy] += w * Math.cos(theta) * Math.sin(r);
+                break;
+            case BENT:
+                xs[ix] += w * (x < 0 ? 2 * x : x);
+                ys[iy] += w * (y < 0 ? y / 2 : y);
+                break;
+            case FISHEYE:
+                r = 2 * w / (Math.sqrt(x * x + y * y) + 1);
+                xs[ix] += r * y;
+                ys[iy] += r * x;
+                break;
+            case EXPONENTIAL:
+                r = w * Math.exp(x - 1);
+                xs[ix] += r * Math.cos(Math.PI * y);
+                ys[iy] += r * Math.sin(Math.PI * y);
+                break;
+            case COSINE:
+                xs[ix] += w * Math.cos(Math.PI * x) * Math.cosh(y);
+                ys[iy] -= w * Math.sin(Math.PI * x) * Math.sinh(y);
+                break;
+        }
+    }
+}
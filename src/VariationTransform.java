@@ -0,0 +1,124 @@
+import java.util.Vector;
+
+/**
+ * A nonlinear transform in the style of the fractal flame algorithm. The
+ * point is first moved by an affine map, as an <code> AffineTransform </code>
+ * would, and the result is then sent through a weighted sum of
+ * <code> Variation </code>s:
+ *
+ * <pre>
+ * T(p) = w_1 V_1(A p + s) + ... + w_k V_k(A p + s)
+ * </pre>
+ *
+ * With the single variation LINEAR at weight 1 this is just the affine map.
+ * Systems of these are compiled like affine ones, see <code> CompiledIFS </code>.
+ * @author J. Marcus Hughes
+ * @see Variation
+ */
+public class VariationTransform extends Transform {
+    AffineTransform pre;     // affine map applied before the variations
+    Variation[] variations;  // the nonlinear functions summed
+    double[] weights;        // weight of each variation
+
+    /**
+     * Constructs a weighted combination of variations
+     * @param pre affine map applied first
+     * @param variations the variations to sum
+     * @param weights weight of each variation, usually summing to 1
+     */
+    VariationTransform(AffineTransform pre, Variation[] variations, double[] weights) {
+        super("Variation Transform");
+        if (variations.length != weights.length || variations.length == 0) {
+            throw new RuntimeException("Need one weight per variation and at least one variation");
+        }
+        this.pre = pre;
+        this.variations = variations.clone();
+        this.weights = weights.clone();
+    }
+
+    /**
+     * Constructs a transform with a single variation
+     * @param pre affine map applied first
+     * @param variation the variation, with weight 1
+     */
+    VariationTransform(AffineTransform pre, Variation variation) {
+        this(pre, new Variation[]{variation}, new double[]{1.0});
+    }
+
+    /**
+     * Executes the transform on (x, y) without allocating
+     * @param x x coordinate of the point
+     * @param y y coordinate of the point
+     * @param out buffer of length at least 2 receiving the new {x, y}
+     */
+    public void apply(double x, double y, double[] out) {
+        double u = pre.a * x + pre.b * y + pre.e;
+        double v = pre.c * x + pre.d * y + pre.f;
+        out[0] = 0.0;
+        out[1] = 0.0;
+        for (int k = 0; k < variations.length; k++) {
+            Variation.apply(variations[k], weights[k], u, v, out);
+        }
+    }
+
+    /**
+     * Executes the transform in place on parallel arrays
+     * @param xs x coordinates
+     * @param ys y coordinates
+     * @param i index of the point to move
+     */
+    public void apply(double[] xs, double[] ys, int i) {
+        double u = pre.a * xs[i] + pre.b * ys[i] + pre.e;
+        double v = pre.c * xs[i] + pre.d * ys[i] + pre.f;
+        xs[i] = 0.0;
+        ys[i] = 0.0;
+        for (int k = 0; k < variations.length; k++) {
+            Variation.apply(variations[k], weights[k], u, v, xs, i, ys, i);
+        }
+    }
+
+    /**
+     * Executes the transform in place on a batch of points in parallel arrays
+     * @param xs x coordinates
+     * @param ys y coordinates
+     * @param index positions in <code> xs </code> and <code> ys </code> to move
+     * @param from first entry of <code> index </code> to use
+     * @param to one past the last entry of <code> index </code> to use
+     */
+    public void apply(double[] xs, double[] ys, int[] index, int from, int to) {
+        for (int k = from; k < to; k++) {
+            apply(xs, ys, index[k]);
+        }
+    }
+
+    /**
+     * String representation
+     */
+    public String toString() {
+        StringBuilder s = new StringBuilder(pre.toString());
+        for (int k = 0; k < variations.length; k++) {
+            s.append(String.format(" %+f %s", weights[k], variations[k]));
+        }
+        return s.toString();
+    }
+
+    /**
+     * testing main, a small flame of swirl, spherical and sinusoidal maps
+     */
+    public static void main(String[] args) {
+        Vector<Transform> transforms = new Vector<Transform>();
+        transforms.add(new VariationTransform(new AffineTransform(0.56, -0.43, 0.43, 0.56, 0.2, 0.1),
+                                              new Variation[]{Variation.SWIRL, Variation.LINEAR},
+                                              new double[]{0.7, 0.3}));
+        transforms.add(new VariationTransform(new AffineTransform(0.5, 0.0, 0.0, 0.5, -0.5, 0.3),
+                                              Variation.SPHERICAL));
+        transforms.add(new VariationTransform(new AffineTransform(-0.6, 0.2, 0.1, 0.7, 0.4, -0.2),
+                                              new Variation[]{Variation.SINUSOIDAL, Variation.HORSESHOE},
+                                              new double[]{0.5, 0.5}));
+        IFS flame = new IFS(transforms);
+        for (Transform t : transforms) {
+            System.out.println(t);
+        }
+        new RandomIFSEvaluator(flame, 10000, 200).plot("flame.jpg", 500, 500);
+    }
+}